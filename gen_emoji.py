@@ -1,10 +1,33 @@
 import urllib.request
 import os.path
+import re
+import struct
 
-EMOJIS_PATH = 'res/raw/emojis.txt'
-EMOJI_TEST_PATH = 'emoji-test.txt'
+EMOJIS_PATH = 'assets/emojis.bin'
+EMOJI_TEST_PATH = 'srcs/emoji-test.txt'
 EMOJI_TEST_URL = 'https://unicode.org/Public/emoji/latest/emoji-test.txt'
 
+# Format of EMOJIS_PATH, read by Emoji.java, big-endian:
+#   magic "KBEM", u16 version
+#   u16 number of emojis, u16 number of group bounds
+#   u16 group bounds: index of the first emoji of each group. The last bound is
+#   the end of the last group.
+#   u16 offset of each emoji in the payload, followed by the payload length
+#   u16 emoji indexes sorted by the UTF-16 value of the emojis
+#   payload: the UTF-16 value of all emojis
+#   Search index, used by EmojiSearch.java:
+#   u16 number of tokens
+#   u16 offset of each token in the token payload, followed by its length
+#   u16 offset of the postings of each token, followed by their length
+#   postings: u16 indexes of the emojis whose name contains the token, sorted
+#   token payload: the UTF-16 value of the tokens, sorted by their UTF-16 value
+# Tokens are the words of the names found in EMOJI_TEST_PATH, in lower case.
+# EMOJIS_PATH is generated from the committed EMOJI_TEST_PATH, see its header
+# for where the names come from. To update the emojis, remove it and run this
+# script to download the upstream file, which contains the CLDR short names.
+MAGIC = b'KBEM'
+VERSION = 2
+
 def rawEmojiFromCodes(codes):
     return ''.join([chr(int(c, 16)) for c in codes])
 
@@ -15,9 +38,61 @@ def getEmojiTestContents():
         print(f'Downloading {EMOJI_TEST_URL}')
         urllib.request.urlretrieve(EMOJI_TEST_URL, EMOJI_TEST_PATH)
     return open(EMOJI_TEST_PATH, mode='r', encoding='UTF-8').read()
-        
+
+def utf16(s):
+    return s.encode('UTF-16-BE')
+
+# Must split names like EmojiSearch.tokenize splits queries.
+def tokenize(name):
+    return re.findall(r'[^\W_]+', name.lower())
+
+def u16s(l):
+    if any(x > 0xFFFF for x in l):
+        raise Exception('Index too large')
+    return struct.pack(f'>{len(l)}H', *l)
+
+def encodeStrings(strings):
+    payload = b''
+    offsets = []
+    for s in strings:
+        offsets.append(len(payload) // 2)
+        payload += utf16(s)
+    offsets.append(len(payload) // 2)
+    return offsets, payload
+
+def encodeSearchIndex(emoji_names):
+    postings = {}
+    for i, name in enumerate(emoji_names):
+        for t in tokenize(name):
+            postings.setdefault(t, set()).add(i)
+    tokens = sorted(postings.keys(), key=utf16)
+    token_offsets, token_payload = encodeStrings(tokens)
+    postings_offsets = []
+    postings_list = []
+    for t in tokens:
+        postings_offsets.append(len(postings_list))
+        postings_list.extend(sorted(postings[t]))
+    postings_offsets.append(len(postings_list))
+    return b''.join([ u16s([len(tokens)]), u16s(token_offsets),
+                      u16s(postings_offsets), u16s(postings_list),
+                      token_payload ])
+
+def encodeEmojis(emoji_list, emoji_names, group_indices):
+    offsets, payload = encodeStrings(emoji_list)
+    if len(emoji_list) > 0xFFFF or offsets[-1] > 0xFFFF:
+        raise Exception('Too many emojis')
+    # Sorting the UTF-16 bytes gives the same order as Java's String.compareTo.
+    sorted_indexes = sorted(range(len(emoji_list)),
+                            key=lambda i: utf16(emoji_list[i]))
+    return b''.join([ MAGIC,
+                      struct.pack('>HHH', VERSION, len(emoji_list),
+                                  len(group_indices)),
+                      u16s(group_indices), u16s(offsets),
+                      u16s(sorted_indexes), payload,
+                      encodeSearchIndex(emoji_names) ])
 
 emoji_list = []
+emoji_names = []
 group_indices = []
 for line in getEmojiTestContents().splitlines():
     if line.startswith('# group:'):
@@ -26,13 +101,12 @@ for line in getEmojiTestContents().splitlines():
     elif not line.startswith('#') and 'fully-qualified' in line:
         codes = line.split(';')[0].split()
         emoji_list.append(rawEmojiFromCodes(codes))
+        # The comment is the emoji, the version it was introduced in and the
+        # name, eg. "# 😀 E1.0 grinning face".
+        comment = line.split('#', 1)[1].split(None, 2)
+        emoji_names.append(comment[2] if len(comment) == 3 else '')
 
-with open(EMOJIS_PATH, 'w', encoding='UTF-8') as emojis:
-    for e in emoji_list:
-        emojis.write(f'{e}\n')
-    emojis.write('\n')
-
-    emojis.write(' '.join([str(g) for g in group_indices]))
-    emojis.write('\n')
+with open(EMOJIS_PATH, 'wb') as emojis:
+    emojis.write(encodeEmojis(emoji_list, emoji_names, group_indices))
 
 print(f'Parsed {len(emoji_list)} emojis in {len(group_indices)}')
@@ -0,0 +1,292 @@
+#!/usr/bin/env python
+
+# Compiles the layouts in srcs/layouts into assets/layouts.bin, which is read
+# by BinaryLayouts.java instead of parsing the XML at runtime.
+# The file is decoded again and compared with the XML before being written,
+# which checks the encoder. That the decoded layouts are the same as the ones
+# parsed by KeyboardData.java is checked by test/juloo.keyboard2/
+# BinaryLayoutsTest.java, run with './gradlew test'.
+#
+# Format, big-endian:
+#   magic "KBLY", u8 version
+#   u16 number of strings, then each string: u16 length, UTF-8 bytes
+#   u16 number of layouts, then each: u16 string (layout id), u32 offset
+#   Layouts, at their offset:
+#     u8 flags (FLAG_*), f32 width (0 if not specified)
+#     u16 string or NONE: script, numpad_script, name
+#     u8 number of rows, then each row:
+#       f32 height, f32 shift, u8 number of keys, then each key:
+#         u16 mask (KEY_*), u16 loc flags (bit i for key i)
+#         u16 string for each present key value, anticircle and indication
+#         f32 width, f32 shift
+#     u8 whether there's a modmap, then u16 number of shift mappings, pairs of
+#     u16 strings and the same for fn mappings.
+# Key values are stored as names, the "loc " prefix removed.
+
+import sys, os, glob, struct
+import xml.etree.ElementTree as XML
+
+MAGIC = b"KBLY"
+VERSION = 1
+NONE = 0xFFFF
+FLAG_BOTTOM_ROW = 1
+FLAG_LOCALE_EXTRA_KEYS = 2
+KEY_ANTICIRCLE = 1 << 9
+KEY_INDICATION = 1 << 10
+KEY_SLIDER = 1 << 11
+
+# Attributes for key1 to key8 and their synonyms.
+KEY_SYNONYMS = [ ("key1", "nw"), ("key2", "ne"), ("key3", "sw"),
+                ("key4", "se"), ("key5", "w"), ("key6", "e"), ("key7", "n"),
+                ("key8", "s") ]
+
+class LayoutError(Exception):
+    pass
+
+# Resource files are compiled by aapt, which interprets backslash escapes in
+# attributes.
+def unescape(s):
+    if s is None or "\\" not in s:
+        return s
+    out = []
+    i = 0
+    while i < len(s):
+        c = s[i]
+        if c == "\\" and i + 1 < len(s):
+            n = s[i + 1]
+            if n == "u":
+                out.append(chr(int(s[i+2:i+6], 16)))
+                i += 6
+                continue
+            out.append({ "n": "\n", "t": "\t" }.get(n, n))
+            i += 2
+        else:
+            out.append(c)
+            i += 1
+    return "".join(out)
+
+def attr(elem, name):
+    return unescape(elem.get(name))
+
+def attr_float(elem, name, default):
+    v = elem.get(name)
+    return default if v is None else float(v)
+
+def attr_bool(elem, name, default):
+    v = elem.get(name)
+    return default if v is None else v == "true"
+
+# Parse like KeyboardData.java. Returns a tuple that can be compared with the
+# result of [decode_layout].
+def parse_key(elem):
+    values = [ attr(elem, "key0") ]
+    for syn1, syn2 in KEY_SYNONYMS:
+        v1, v2 = attr(elem, syn1), attr(elem, syn2)
+        if v1 is not None and v2 is not None:
+            raise LayoutError("'%s' and '%s' are synonyms and cannot be passed at the same time." % (syn1, syn2))
+        values.append(v2 if v1 is None else v1)
+    loc = 0
+    for i, v in enumerate(values):
+        if v is not None and v.startswith("loc "):
+            values[i] = v[4:]
+            loc |= 1 << i
+    return (tuple(values), loc, attr(elem, "anticircle"),
+            attr(elem, "indication"), attr_bool(elem, "slider", False),
+            f32(attr_float(elem, "width", 1.)),
+            f32(attr_float(elem, "shift", 0.)))
+
+def parse_row(elem):
+    if elem.tag != "row":
+        raise LayoutError("Expecting tag <row>, got <%s>" % elem.tag)
+    keys = []
+    for k in elem:
+        if k.tag != "key":
+            raise LayoutError("Expecting tag <key>, got <%s>" % k.tag)
+        keys.append(parse_key(k))
+    return (f32(attr_float(elem, "height", 1.)),
+            f32(attr_float(elem, "shift", 0.)), tuple(keys))
+
+def parse_modmap(elem):
+    mappings = { "shift": [], "fn": [] }
+    for m in elem:
+        if m.tag not in mappings:
+            raise LayoutError("Expecting tag <shift> or <fn>, got <%s>" % m.tag)
+        mappings[m.tag].append((attr(m, "a"), attr(m, "b")))
+    return (tuple(mappings["shift"]), tuple(mappings["fn"]))
+
+def parse_layout(root):
+    script = attr(root, "script")
+    if script == "":
+        raise LayoutError("'script' attribute cannot be empty")
+    numpad_script = attr(root, "numpad_script")
+    if numpad_script == "":
+        raise LayoutError("'numpad_script' attribute cannot be empty")
+    rows = []
+    modmap = None
+    for elem in root:
+        if elem.tag == "modmap":
+            if modmap is not None:
+                raise LayoutError("Multiple '<modmap>' are not allowed")
+            modmap = parse_modmap(elem)
+        else:
+            rows.append(parse_row(elem))
+    return (attr_bool(root, "bottom_row", True),
+            attr_bool(root, "locale_extra_keys", True),
+            f32(attr_float(root, "width", 0.)), script, numpad_script,
+            attr(root, "name"), tuple(rows), modmap)
+
+# Round to the precision stored in the file.
+def f32(f):
+    return struct.unpack(">f", struct.pack(">f", f))[0]
+
+class Encoder:
+    def __init__(self):
+        self.strings = []
+        self.string_ids = {}
+
+    def string(self, s):
+        if s is None:
+            return NONE
+        if s not in self.string_ids:
+            self.string_ids[s] = len(self.strings)
+            self.strings.append(s)
+        return self.string_ids[s]
+
+    def layout(self, layout):
+        bottom_row, locale_extra_keys, width, script, numpad_script, name, \
+            rows, modmap = layout
+        flags = (FLAG_BOTTOM_ROW if bottom_row else 0) \
+            | (FLAG_LOCALE_EXTRA_KEYS if locale_extra_keys else 0)
+        out = [ struct.pack(">BfHHHB", flags, width, self.string(script),
+                            self.string(numpad_script), self.string(name),
+                            len(rows)) ]
+        for height, shift, keys in rows:
+            out.append(struct.pack(">ffB", height, shift, len(keys)))
+            for values, loc, anticircle, indication, slider, kw, ks in keys:
+                mask = 0
+                ids = []
+                for i, v in enumerate(values):
+                    if v is not None:
+                        mask |= 1 << i
+                        ids.append(self.string(v))
+                if anticircle is not None:
+                    mask |= KEY_ANTICIRCLE
+                    ids.append(self.string(anticircle))
+                if indication is not None:
+                    mask |= KEY_INDICATION
+                    ids.append(self.string(indication))
+                if slider:
+                    mask |= KEY_SLIDER
+                out.append(struct.pack(">HH%dHff" % len(ids), mask, loc, *ids,
+                                       kw, ks))
+        if modmap is None:
+            out.append(struct.pack(">B", 0))
+        else:
+            out.append(struct.pack(">B", 1))
+            for mappings in modmap:
+                out.append(struct.pack(">H", len(mappings)))
+                for a, b in mappings:
+                    out.append(struct.pack(">HH", self.string(a),
+                                           self.string(b)))
+        return b"".join(out)
+
+def encode(layouts):
+    enc = Encoder()
+    bodies = [ (enc.string(lid), enc.layout(l)) for lid, l in layouts ]
+    strings = [ s.encode("utf-8") for s in enc.strings ]
+    header = [ MAGIC, struct.pack(">BH", VERSION, len(strings)) ]
+    for s in strings:
+        header.append(struct.pack(">H", len(s)))
+        header.append(s)
+    header.append(struct.pack(">H", len(bodies)))
+    offset = sum(map(len, header)) + len(bodies) * 6
+    index = []
+    for name_id, body in bodies:
+        index.append(struct.pack(">HI", name_id, offset))
+        offset += len(body)
+    return b"".join(header + index + [ body for _, body in bodies ])
+
+class Decoder:
+    def __init__(self, data):
+        self.data = data
+        self.pos = 0
+
+    def read(self, fmt):
+        vals = struct.unpack_from(">" + fmt, self.data, self.pos)
+        self.pos += struct.calcsize(">" + fmt)
+        return vals
+
+    def string(self, strings):
+        i, = self.read("H")
+        return None if i == NONE else strings[i]
+
+def decode(data):
+    d = Decoder(data)
+    if data[:4] != MAGIC:
+        raise LayoutError("Bad magic")
+    d.pos = 4
+    version, n_strings = d.read("BH")
+    strings = []
+    for _ in range(n_strings):
+        n, = d.read("H")
+        strings.append(data[d.pos:d.pos+n].decode("utf-8"))
+        d.pos += n
+    n_layouts, = d.read("H")
+    index = [ d.read("HI") for _ in range(n_layouts) ]
+    layouts = []
+    for name_id, offset in index:
+        d.pos = offset
+        layouts.append((strings[name_id], decode_layout(d, strings)))
+    return layouts
+
+def decode_layout(d, strings):
+    flags, width = d.read("Bf")
+    script = d.string(strings)
+    numpad_script = d.string(strings)
+    name = d.string(strings)
+    n_rows, = d.read("B")
+    rows = []
+    for _ in range(n_rows):
+        height, shift, n_keys = d.read("ffB")
+        keys = []
+        for _ in range(n_keys):
+            mask, loc = d.read("HH")
+            values = tuple(d.string(strings) if mask & (1 << i) else None
+                           for i in range(9))
+            anticircle = d.string(strings) if mask & KEY_ANTICIRCLE else None
+            indication = d.string(strings) if mask & KEY_INDICATION else None
+            kw, ks = d.read("ff")
+            keys.append((values, loc, anticircle, indication,
+                         bool(mask & KEY_SLIDER), kw, ks))
+        rows.append((height, shift, tuple(keys)))
+    modmap = None
+    has_modmap, = d.read("B")
+    if has_modmap:
+        mappings = []
+        for _ in range(2):
+            n, = d.read("H")
+            mappings.append(tuple((d.string(strings), d.string(strings))
+                                  for _ in range(n)))
+        modmap = tuple(mappings)
+    return (bool(flags & FLAG_BOTTOM_ROW), bool(flags & FLAG_LOCALE_EXTRA_KEYS),
+            width, script, numpad_script, name, tuple(rows), modmap)
+
+# Yields the id (based on the file name) and the parsed layout.
+def read_layouts(files):
+    for fname in files:
+        layout_id, _ = os.path.splitext(os.path.basename(fname))
+        root = XML.parse(fname).getroot()
+        if root.tag != "keyboard":
+            print("Not a layout file: %s" % fname)
+            continue
+        try:
+            yield (layout_id, parse_layout(root))
+        except LayoutError as e:
+            sys.exit("%s: %s" % (fname, e))
+
+layouts = list(read_layouts(sorted(glob.glob("srcs/layouts/*.xml"))))
+data = encode(layouts)
+if decode(data) != layouts:
+    sys.exit("Round-trip check failed")
+with open("assets/layouts.bin", "wb") as out:
+    out.write(data)
@@ -1,11 +1,13 @@
-import textwrap, sys, re, string, json, os
+import textwrap, sys, re, string, json, os, struct
 from array import array
 
 # Compile compose sequences from Xorg's format or from JSON files into an
 # efficient state machine.
 # See [ComposeKey.java] for the interpreter.
 #
-# Takes input files as arguments and generate a Java file.
+# Takes the path to the binary file to generate followed by the input files as
+# arguments. The state machine is written into the binary file and a Java file
+# is printed on the standard output.
 # The initial state for each input is generated as a constant named after the
 # input file.
 
@@ -91,10 +93,19 @@ def parse_sequences_file_xkb(fname, xkb_char_extra_names):
         return seqs
 
 # Parse from a json file containing a dictionary sequence → result string.
+# The result can also be a nested dictionary, whose sequences are appended to
+# the key. They are flattened so that they are merged with the sequences of
+# the other files instead of replacing them.
 def parse_sequences_file_json(fname):
+    def flatten(prefix, seqs):
+        for seq, result in seqs.items():
+            if isinstance(result, dict):
+                yield from flatten(prefix + seq, result)
+            else:
+                yield (prefix + seq, result)
     with open(fname, "r") as inp:
         seqs = json.load(inp)
-    return list(seqs.items())
+    return list(flatten("", seqs))
 
 # Format of the sequences file is determined by its extension
 def parse_sequences_file(fname, xkb_char_extra_names={}):
@@ -110,7 +121,7 @@ def parse_sequences_dir(dname):
     compose_files = []
     xkb_char_extra_names = {}
     # Parse keysymdef.h first if present
-    for fbasename in os.listdir(dname):
+    for fbasename in sorted(os.listdir(dname)):
         fname = os.path.join(dname, fbasename)
         if fbasename == "keysymdef.h":
             xkb_char_extra_names = dict(parse_keysymdef_h(fname))
@@ -144,25 +155,35 @@ def add_sequences_to_trie(seqs, trie):
     for seq, result in seqs:
         add_seq_to_trie(trie, seq, result)
 
-# Compile the trie into a state machine.
+# Number of cells following the header of an intermediate state.
+REACHABLE_CELLS = 8
+
+# Set of the characters that have a transition from an intermediate state. A
+# 128-bit set indexed by the character modulo 128, stored in [REACHABLE_CELLS]
+# cells of 16 bits. Must match [ComposeKey.Tables.may_transition].
+def reachable_cells(chars):
+    cells = [0] * REACHABLE_CELLS
+    for c in chars:
+        bit = ord(c) & 127
+        cells[bit >> 4] |= 1 << (bit & 15)
+    return cells
+
+# Compile the trie into a state machine. The transitions are returned
+# separately as a list of (state, char, next state).
 def make_automata(tries):
     states = []
+    transitions = []
     def add_tree(t):
-        # Index and size of the new node
+        # Add node header followed by the set of reachable characters
         i = len(states)
-        s = len(t.keys())
-        # Add node header
-        states.append(("\0", s + 1))
-        i += 1
-        # Reserve space for the current node in both arrays
-        for c in range(s):
-            states.append((None, None))
-        # Add nested nodes and fill the current node
+        states.append(("\0", 1 + REACHABLE_CELLS))
+        for cell in reachable_cells(t.keys()):
+            states.append((cell, 0))
+        # Add nested nodes and the transitions to them
         for c in sorted(t.keys()):
             node_i = len(states)
             add_node(t[c])
-            states[i] = (c, node_i)
-            i += 1
+            transitions.append((i, c, node_i))
     def add_leaf(c):
         # There are two encoding for leafs: character final state for 15-bit
         # characters and string final state for the rest.
@@ -183,7 +204,50 @@ def make_automata(tries):
     for tname, tree_root in tries.items():
         entry_states[tname] = len(states)
         add_tree(tree_root)
-    return entry_states, states
+    # State indexes are stored in 16-bit chars.
+    if len(states) > 0xFFFF:
+        raise Exception("Too many states: %d" % len(states))
+    return entry_states, states, transitions
+
+# Must match [ComposeKey.Tables.transition_slot]. Two possible slots for each
+# transition, [0] and [1] select the hash function.
+TRANSITION_HASH_MULTIPLIERS = [ 0x9E3779B1, 0x85EBCA6B ]
+
+def transition_slot(h, state, c, bits):
+    key = (state << 16) | c
+    return ((key * TRANSITION_HASH_MULTIPLIERS[h]) & 0xFFFFFFFF) >> (32 - bits)
+
+# Store the transitions into a cuckoo hash table indexed by state and
+# character. Each transition is in one of its two possible slots, which makes
+# lookups constant time. The cells of the table are (state, char, next state).
+# Empty cells have a state of [0], which is not the index of an intermediate
+# state. The size is a power of two, at least twice the number of transitions.
+def make_transition_table(transitions):
+    bits = 1
+    while (1 << bits) < len(transitions) * 2:
+        bits += 1
+    while True:
+        table = place_transitions(transitions, bits)
+        if table != None:
+            return table
+        bits += 1
+
+# Returns [None] if the insertion failed.
+def place_transitions(transitions, bits):
+    table = [(0, 0, 0)] * (1 << bits)
+    for state, c, next_state in transitions:
+        tr = (state, ord(c), next_state)
+        h = 0
+        for _ in range(len(table)):
+            i = transition_slot(h, tr[0], tr[1], bits)
+            tr, table[i] = table[i], tr
+            if tr[0] == 0:
+                break
+            # Move the evicted transition into its other slot.
+            h = 1 if transition_slot(0, tr[0], tr[1], bits) == i else 0
+        else:
+            return None
+    return table
 
 # Debug
 def print_automata(automata):
@@ -193,67 +257,54 @@ def print_automata(automata):
         print("%3d %8s %d" % (i, s, e), file=sys.stderr)
         i += 1
 
-def batched(ar, n):
-    i = 0
-    while i + n < len(ar):
-        yield ar[i:i+n]
-        i += n
-    if i < len(ar):
-        yield ar[i:]
+# Must match [ComposeKey.Tables].
+BINARY_MAGIC = b"KBCS"
+BINARY_VERSION = 2
 
-# Print the state machine compiled by make_automata into java code that can be
-# used by [ComposeKeyData.java].
-def gen_java(entry_states, machine):
-    chars_map = {
-            # These characters cannot be used in unicode form as Java's parser
-            # unescape unicode sequences before parsing.
-            -1: "\\uFFFF",
-            "\"": "\\\"",
-            "\\": "\\\\",
-            "\n": "\\n",
-            "\r": "\\r",
-            ord("\""): "\\\"",
-            ord("\\"): "\\\\",
-            ord("\n"): "\\n",
-            ord("\r"): "\\r",
-            }
-    def char_repr(c):
-        if c in chars_map:
-            return chars_map[c]
-        if type(c) == int: # The edges array contains ints
-            return "\\u%04x" % c
-        if c in string.printable:
-            return c
-        return "\\u%04x" % ord(c)
-    def gen_array(array):
-        chars = list(map(char_repr, array))
-        return "\" +\n    \"".join(map(lambda b: "".join(b), batched(chars, 72)))
+# Write the state machine compiled by make_automata and the table from
+# make_transition_table into a binary file read by [ComposeKey.java].
+# Format, big-endian:
+#   magic "KBCS", u16 version, u16 unused
+#   u32 length of each array, in number of u16
+#   The arrays, each cell is an u16: states, edges, transition_states,
+#   transition_chars, transition_next
+def gen_binary(fname, machine, table):
+    def cell(c):
+        if c == -1:
+            return 0xFFFF
+        if type(c) == str:
+            return ord(c)
+        return c
+    arrays = [ [ cell(s) for s, _ in machine ],
+               [ e for _, e in machine ],
+               [ t[0] for t in table ],
+               [ t[1] for t in table ],
+               [ t[2] for t in table ] ]
+    out = [ BINARY_MAGIC, struct.pack(">HH", BINARY_VERSION, 0) ]
+    out.extend(struct.pack(">I", len(a)) for a in arrays)
+    out.extend(struct.pack(">%dH" % len(a), *a) for a in arrays)
+    with open(fname, "wb") as f:
+        f.write(b"".join(out))
+
+# Print the entry states of the state machine into java code.
+def gen_java(entry_states):
     def gen_entry_state(s):
         name, state = s
         return "  public static final int %s = %d;" % (name, state)
     print("""package juloo.keyboard2;
 
-/** This file is generated, see [srcs/compose/compile.py]. */
+/** This file is generated, see [srcs/compose/compile.py]. The state machine
+    is in [assets/compose.bin], see [ComposeKey]. */
 
 public final class ComposeKeyData
 {
-  public static final char[] states =
-    ("%s").toCharArray();
-
-  public static final char[] edges =
-    ("%s").toCharArray();
-
 %s
-}""" % (
-    # Break the edges array every few characters using string concatenation.
-    gen_array(map(lambda s: s[0], machine)),
-    gen_array(map(lambda s: s[1], machine)),
-    "\n".join(map(gen_entry_state, entry_states.items())),
-))
+}""" % "\n".join(map(gen_entry_state, entry_states.items())))
 
 total_sequences = 0
 tries = {} # Orderred dict
-for fname in sorted(sys.argv[1:]):
+bin_fname = sys.argv[1]
+for fname in sorted(sys.argv[2:]):
     tname, _ = os.path.splitext(os.path.basename(fname))
     if os.path.isdir(fname):
         sequences = parse_sequences_dir(fname)
@@ -261,7 +312,10 @@ for fname in sorted(sys.argv[1:]):
         sequences = parse_sequences_file(fname)
     add_sequences_to_trie(sequences, tries.setdefault(tname, {}))
     total_sequences += len(sequences)
-entry_states, automata = make_automata(tries)
-gen_java(entry_states, automata)
+entry_states, automata, transitions = make_automata(tries)
+table = make_transition_table(transitions)
+gen_binary(bin_fname, automata, table)
+gen_java(entry_states)
 print("Compiled %d sequences into %d states. Dropped %d sequences." % (total_sequences, len(automata), dropped_sequences), file=sys.stderr)
+print("Stored %d transitions into a table of size %d." % (len(transitions), len(table)), file=sys.stderr)
 # print_automata(automata)
@@ -23,6 +23,20 @@ public final class Autocapitalisation
   /** Keep track of the cursor to recognize cursor movements from typing. */
   int _cursor;
 
+  /** Last characters typed, used to compute the caps mode without querying
+      the editor, see [local_caps_mode]. Ring buffer, the last character is at
+      [_recent_end - 1]. */
+  final char[] _recent = new char[RECENT_SIZE];
+  int _recent_end = 0;
+  /** Number of characters in [_recent]. */
+  int _recent_len = 0;
+  /** Whether [_recent] contains all the text before the cursor. */
+  boolean _recent_from_start = false;
+  /** Whether [delayed_callback] is posted and has not run yet. */
+  boolean _callback_posted = false;
+
+  static final int RECENT_SIZE = 32;
+
   static int SUPPORTED_CAPS_MODES =
     InputType.TYPE_TEXT_FLAG_CAP_SENTENCES |
     InputType.TYPE_TEXT_FLAG_CAP_WORDS;
@@ -42,6 +56,7 @@ public final class Autocapitalisation
   {
     _ic = ic;
     _caps_mode = info.inputType & TextUtils.CAP_MODE_SENTENCES;
+    reset_recent(info.initialSelStart == 0 && info.initialSelEnd == 0);
     if (!Config.globalConfig().autocapitalisation || _caps_mode == 0)
     {
       _enabled = false;
@@ -73,6 +88,15 @@ public final class Autocapitalisation
       case KeyEvent.KEYCODE_DEL:
         if (_cursor > 0) _cursor--;
         _should_update_caps_mode = true;
+        if (_recent_len > 0)
+        {
+          _recent_len--;
+          _recent_end = (_recent_end + RECENT_SIZE - 1) % RECENT_SIZE;
+        }
+        break;
+      default:
+        // The effect of other keys on the text is not known.
+        reset_recent(false);
         break;
     }
     callback(true);
@@ -95,6 +119,7 @@ public final class Autocapitalisation
   {
     if (new_cursor == _cursor) // Just typing
       return;
+    reset_recent(new_cursor == 0);
     if (new_cursor == 0 && _ic != null)
     {
       // Detect whether the input box has been cleared
@@ -111,9 +136,13 @@ public final class Autocapitalisation
   {
     public void run()
     {
+      _callback_posted = false;
       if (_should_update_caps_mode && _ic != null)
       {
-        _should_enable_shift = _enabled && (_ic.getCursorCapsMode(_caps_mode) != 0);
+        int caps = local_caps_mode();
+        if (caps < 0)
+          caps = _ic.getCursorCapsMode(_caps_mode);
+        _should_enable_shift = _enabled && (caps != 0);
         _should_update_caps_mode = false;
       }
       _callback.update_shift_state(_should_enable_shift, _should_disable_shift);
@@ -129,6 +158,10 @@ public final class Autocapitalisation
     _should_disable_shift = might_disable;
     // The callback must be delayed because [getCursorCapsMode] would sometimes
     // be called before the editor finished handling the previous event.
+    // A callback already posted will see the latest state.
+    if (_callback_posted)
+      return;
+    _callback_posted = true;
     _handler.postDelayed(delayed_callback, 1);
   }
 
@@ -142,12 +175,83 @@ public final class Autocapitalisation
   void type_one_char(char c)
   {
     _cursor++;
+    _recent[_recent_end] = c;
+    _recent_end = (_recent_end + 1) % RECENT_SIZE;
+    if (_recent_len < RECENT_SIZE)
+      _recent_len++;
+    else
+      _recent_from_start = false;
     if (is_trigger_character(c))
       _should_update_caps_mode = true;
     else
       _should_enable_shift = false;
   }
 
+  /** Forget the recently typed characters. [from_start] is whether the
+      cursor is at the start of the text. */
+  void reset_recent(boolean from_start)
+  {
+    _recent_end = 0;
+    _recent_len = 0;
+    _recent_from_start = from_start;
+  }
+
+  /** Character typed [i] characters before the cursor, starting at [1].
+      Returns [-1] at the start of the text and [-2] if it's not known. */
+  int recent_char(int i)
+  {
+    if (i > _recent_len)
+      return _recent_from_start ? -1 : -2;
+    return _recent[(_recent_end - i + RECENT_SIZE) % RECENT_SIZE];
+  }
+
+  /** Same as [InputConnection.getCursorCapsMode(_caps_mode)], which is
+      implemented with [TextUtils.getCapsMode], computed from the recently
+      typed characters. Returns [-1] if they are not enough. */
+  int local_caps_mode()
+  {
+    int c;
+    int i = 1;
+    // Back over allowed opening punctuation.
+    while ((c = recent_char(i)) >= 0 && (c == '"' || c == '\''
+          || Character.getType(c) == Character.START_PUNCTUATION))
+      i++;
+    if (c == -2)
+      return -1;
+    // Start of paragraph, with optional whitespace.
+    int j = i;
+    while ((c = recent_char(j)) == ' ' || c == '\t')
+      j++;
+    if (c == -2)
+      return -1;
+    if (c == -1 || c == '\n')
+      return _caps_mode;
+    // There must be a space if not the start of paragraph.
+    if (i == j || (_caps_mode & TextUtils.CAP_MODE_SENTENCES) == 0)
+      return 0;
+    // Back over allowed closing punctuation.
+    while ((c = recent_char(j)) >= 0 && (c == '"' || c == '\''
+          || Character.getType(c) == Character.END_PUNCTUATION))
+      j++;
+    if (c == -2)
+      return -1;
+    if (c != '.' && c != '?' && c != '!')
+      return 0;
+    // Not the end of a sentence if the word contains an other period, it's
+    // an abbreviation.
+    if (c == '.')
+    {
+      int k = j + 1;
+      while ((c = recent_char(k)) >= 0 && c != '.' && Character.isLetter(c))
+        k++;
+      if (c == -2)
+        return -1;
+      if (c == '.')
+        return 0;
+    }
+    return _caps_mode;
+  }
+
   boolean is_trigger_character(char c)
   {
     switch (c)
@@ -0,0 +1,203 @@
+package juloo.keyboard2;
+
+import android.content.res.Resources;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/** Layouts from [srcs/layouts] compiled into [assets/layouts.bin] by
+    [gen_layouts_bin.py], see the format there. Faster to load than the XML.
+    Layouts are decoded when requested. */
+public final class BinaryLayouts
+{
+  static final String ASSET_NAME = "layouts.bin";
+  static final int VERSION = 1;
+  static final int NONE = 0xFFFF;
+  static final int FLAG_BOTTOM_ROW = 1;
+  static final int FLAG_LOCALE_EXTRA_KEYS = 2;
+  static final int KEY_ANTICIRCLE = (1 << 9);
+  static final int KEY_INDICATION = (1 << 10);
+  static final int KEY_SLIDER = (1 << 11);
+
+  final ByteBuffer _data;
+  /** Position of the strings in [_data]. Strings and key values are decoded
+      the first time they are used. */
+  final int[] _string_offsets;
+  final String[] _strings;
+  final KeyValue[] _values;
+  /** Position of each layout in [_data]. */
+  final HashMap<String, Integer> _layout_offsets;
+
+  BinaryLayouts(byte[] data) throws Exception
+  {
+    _data = ByteBuffer.wrap(data);
+    if (data.length < 5 || data[0] != 'K' || data[1] != 'B' || data[2] != 'L'
+        || data[3] != 'Y')
+      throw new Exception("Not a binary layouts file");
+    _data.position(4);
+    if ((_data.get() & 0xFF) != VERSION)
+      throw new Exception("Unsupported binary layouts version");
+    int n_strings = u16();
+    _string_offsets = new int[n_strings];
+    _strings = new String[n_strings];
+    _values = new KeyValue[n_strings];
+    for (int i = 0; i < n_strings; i++)
+    {
+      _string_offsets[i] = _data.position();
+      _data.position(_data.position() + 2 + u16());
+    }
+    int n_layouts = u16();
+    _layout_offsets = new HashMap<String, Integer>();
+    for (int i = 0; i < n_layouts; i++)
+    {
+      String layout_id = string(u16());
+      _layout_offsets.put(layout_id, _data.getInt());
+    }
+  }
+
+  static BinaryLayouts _instance = null;
+  static boolean _instance_failed = false;
+
+  /** Read the file on the first call. Returns [null] if it cannot be read. */
+  public static synchronized BinaryLayouts get(Resources res)
+  {
+    if (_instance == null && !_instance_failed)
+    {
+      try
+      {
+        InputStream inp = res.getAssets().open(ASSET_NAME);
+        _instance = new BinaryLayouts(Utils.read_all_bytes(inp));
+        inp.close();
+      }
+      catch (Exception e)
+      {
+        Logs.exn("Failed to load " + ASSET_NAME, e);
+        _instance_failed = true;
+      }
+    }
+    return _instance;
+  }
+
+  /** Layout from a resource ID, in the same way as [KeyboardData.load].
+      Returns [null] if the layout is not in the file. */
+  public static KeyboardData load(Resources res, int id) throws Exception
+  {
+    BinaryLayouts bin = get(res);
+    if (bin == null)
+      return null;
+    return bin.load(res.getResourceEntryName(id));
+  }
+
+  /** [layout_id] is the name of the file without the extension. Returns
+      [null] if it's not in the file. */
+  public synchronized KeyboardData load(String layout_id) throws Exception
+  {
+    Integer offset = _layout_offsets.get(layout_id);
+    if (offset == null)
+      return null;
+    _data.position(offset);
+    int flags = u8();
+    float specified_kw = _data.getFloat();
+    String script = string(u16());
+    String numpad_script = string(u16());
+    if (numpad_script == null)
+      numpad_script = script;
+    String name = string(u16());
+    int n_rows = u8();
+    ArrayList<KeyboardData.Row> rows = new ArrayList<KeyboardData.Row>(n_rows);
+    for (int r = 0; r < n_rows; r++)
+      rows.add(row());
+    KeyboardData.Modmap modmap = null;
+    if (u8() != 0)
+    {
+      HashMap<KeyValue, KeyValue> shift = new HashMap<KeyValue, KeyValue>();
+      HashMap<KeyValue, KeyValue> fn = new HashMap<KeyValue, KeyValue>();
+      mappings(shift);
+      mappings(fn);
+      modmap = new KeyboardData.Modmap(shift, fn);
+    }
+    float kw = (specified_kw != 0f) ? specified_kw
+      : KeyboardData.compute_max_width(rows);
+    return new KeyboardData(rows, kw, modmap, script, numpad_script, name,
+        (flags & FLAG_BOTTOM_ROW) != 0, (flags & FLAG_LOCALE_EXTRA_KEYS) != 0);
+  }
+
+  KeyboardData.Row row()
+  {
+    float height = _data.getFloat();
+    float shift = _data.getFloat();
+    int n_keys = u8();
+    ArrayList<KeyboardData.Key> keys = new ArrayList<KeyboardData.Key>(n_keys);
+    for (int i = 0; i < n_keys; i++)
+      keys.add(key());
+    return new KeyboardData.Row(keys, height, shift);
+  }
+
+  KeyboardData.Key key()
+  {
+    int mask = u16();
+    int keysflags = 0;
+    int loc = u16();
+    KeyValue[] ks = new KeyValue[9];
+    for (int i = 0; i < 9; i++)
+      if ((mask & (1 << i)) != 0)
+      {
+        ks[i] = value(u16());
+        if ((loc & (1 << i)) != 0)
+          keysflags |= (KeyboardData.Key.F_LOC << i);
+      }
+    KeyValue anticircle =
+      ((mask & KEY_ANTICIRCLE) != 0) ? value(u16()) : null;
+    String indication =
+      ((mask & KEY_INDICATION) != 0) ? string(u16()) : null;
+    float width = _data.getFloat();
+    float shift = _data.getFloat();
+    return new KeyboardData.Key(ks, anticircle, keysflags, width, shift,
+        (mask & KEY_SLIDER) != 0, indication);
+  }
+
+  void mappings(HashMap<KeyValue, KeyValue> dst)
+  {
+    int n = u16();
+    for (int i = 0; i < n; i++)
+    {
+      KeyValue a = value(u16());
+      KeyValue b = value(u16());
+      dst.put(a, b);
+    }
+  }
+
+  /** Returns [null] for [NONE]. Doesn't change the position of [_data]. */
+  String string(int i)
+  {
+    if (i == NONE)
+      return null;
+    String s = _strings[i];
+    if (s == null)
+    {
+      int off = _string_offsets[i];
+      int len = _data.getShort(off) & 0xFFFF;
+      s = new String(_data.array(), off + 2, len, UTF_8);
+      _strings[i] = s;
+    }
+    return s;
+  }
+
+  KeyValue value(int i)
+  {
+    KeyValue kv = _values[i];
+    if (kv == null)
+    {
+      kv = KeyValue.getKeyByName(string(i));
+      _values[i] = kv;
+    }
+    return kv;
+  }
+
+  int u8() { return _data.get() & 0xFF; }
+  int u16() { return _data.getShort() & 0xFFFF; }
+
+  static final Charset UTF_8 = Charset.forName("UTF-8");
+}
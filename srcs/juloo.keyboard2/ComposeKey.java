@@ -1,6 +1,8 @@
 package juloo.keyboard2;
 
-import java.util.Arrays;
+import android.content.res.AssetManager;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
 
 public final class ComposeKey
 {
@@ -29,34 +31,140 @@ public final class ComposeKey
   /** Apply the pending compose sequence to char [c]. */
   static KeyValue apply(int prev, char c)
   {
-    char[] states = ComposeKeyData.states;
-    char[] edges = ComposeKeyData.edges;
-    int prev_length = edges[prev];
-    int next = Arrays.binarySearch(states, prev + 1, prev + prev_length, c);
+    Tables t = tables();
+    if (t == null)
+      return null;
+    int next = t.transition(prev, c);
     if (next < 0)
       return null;
-    next = edges[next];
-    int next_header = states[next];
+    int next_header = t.states.get(next);
     if (next_header == 0) // Enter a new intermediate state.
       return KeyValue.makeComposePending(String.valueOf(c), next, 0);
     else if (next_header == 0xFFFF) // String final state
     {
-      int next_length = edges[next];
+      int next_length = t.edges.get(next);
       return KeyValue.makeStringKey(
-          new String(states, next + 1, next_length - 1));
+          t.states.subSequence(next + 1, next + next_length).toString());
     }
     else // Character final state.
       return KeyValue.makeCharKey((char)next_header);
   }
 
-  /** The state machine is comprised of two arrays.
+  static AssetManager _assets = null;
+  static Tables _tables = null;
+  static boolean _tables_failed = false;
+
+  /** Must be called before any sequence is applied. The state machine is
+      read on first use. */
+  public static void set_assets(AssetManager assets)
+  {
+    _assets = assets;
+  }
+
+  /** Returns [null] if the state machine cannot be read. */
+  static synchronized Tables tables()
+  {
+    if (_tables == null && !_tables_failed)
+    {
+      try
+      {
+        _tables = new Tables(Utils.map_asset(_assets, Tables.ASSET_NAME));
+      }
+      catch (Exception e)
+      {
+        Logs.exn("Failed to load " + Tables.ASSET_NAME, e);
+        _tables_failed = true;
+      }
+    }
+    return _tables;
+  }
+
+  /** The state machine compiled by [srcs/compose/compile.py], see the format
+      there. The arrays are views into the file, which is mapped in memory
+      when possible. */
+  static final class Tables
+  {
+    static final String ASSET_NAME = "compose.bin";
+    static final int VERSION = 2;
+    /** Must match [TRANSITION_HASH_MULTIPLIERS] in [compile.py]. */
+    static final int[] TRANSITION_HASH_MULTIPLIERS = { 0x9E3779B1, 0x85EBCA6B };
 
-      The [states] array represents the different states and the associated
-      transitions:
+    final CharBuffer states;
+    final CharBuffer edges;
+    final CharBuffer transition_states;
+    final CharBuffer transition_chars;
+    final CharBuffer transition_next;
+    final int transition_bits;
+
+    Tables(ByteBuffer data) throws Exception
+    {
+      if (data.limit() < 28 || data.get(0) != 'K' || data.get(1) != 'B'
+          || data.get(2) != 'C' || data.get(3) != 'S')
+        throw new Exception("Not a compose sequences file");
+      if ((data.getShort(4) & 0xFFFF) != VERSION)
+        throw new Exception("Unsupported compose sequences version");
+      int offset = 28;
+      CharBuffer[] arrays = new CharBuffer[5];
+      for (int i = 0; i < arrays.length; i++)
+      {
+        int length = data.getInt(8 + i * 4);
+        ByteBuffer b = data.duplicate();
+        b.position(offset);
+        b.limit(offset + length * 2);
+        arrays[i] = b.slice().asCharBuffer();
+        offset += length * 2;
+      }
+      states = arrays[0];
+      edges = arrays[1];
+      transition_states = arrays[2];
+      transition_chars = arrays[3];
+      transition_next = arrays[4];
+      transition_bits =
+        Integer.numberOfTrailingZeros(transition_states.limit());
+    }
+
+    /** The state reached from intermediate state [state] with [c] or
+        [-1]. */
+    int transition(int state, char c)
+    {
+      if (!may_transition(state, c))
+        return -1;
+      for (int h = 0; h < TRANSITION_HASH_MULTIPLIERS.length; h++)
+      {
+        int i = transition_slot(h, state, c);
+        if (transition_states.get(i) == state && transition_chars.get(i) == c)
+          return transition_next.get(i);
+      }
+      return -1;
+    }
+
+    /** Whether [c] is in the set of reachable characters of intermediate
+        state [state]. When [false], there is no transition and the hash
+        table is not probed. Must match [reachable_cells] in [compile.py]. */
+    boolean may_transition(int state, char c)
+    {
+      int bit = c & 127;
+      return (states.get(state + 1 + (bit >> 4)) & (1 << (bit & 15))) != 0;
+    }
+
+    /** Must match [transition_slot] in [compile.py]. */
+    int transition_slot(int h, int state, char c)
+    {
+      int key = (state << 16) | c;
+      return (key * TRANSITION_HASH_MULTIPLIERS[h]) >>> (32 - transition_bits);
+    }
+  }
+
+  /** The state machine is comprised of two arrays for the states and a hash
+      table for the transitions, see [Tables].
+
+      The [states] array represents the different states:
       - The first cell is the header cell, [states[s]].
       - If the header is equal to [0],
-        The remaining cells are the transitions characters, sorted
-        alphabetically.
+        This is an intermediate state. The next 8 cells are the set of
+        reachable characters, a 128-bit set of the characters that have a
+        transition from this state, indexed by the character modulo 128.
+        Bit [b] is bit [b % 16] of cell [s + 1 + b / 16].
       - If the header is positive,
         This is a final state, [states[s]] is the result of the sequence.
         In this case, [edges[s]] must be equal to [1].
@@ -64,11 +172,16 @@ public final class ComposeKey
         This is a final state, the remaining cells represent the result string
         which starts at index [s + 1] and has a length of [edges[s] - 1].
 
-      The [edges] array represents the transition state corresponding to each
-      accepted inputs.
+      The [edges] array:
       - If [states[s]] is a header cell, [edges[s]] is the number of cells
         occupied by the state [s], including the header cell.
-      - If [states[s]] is a transition, [edges[s]] is the index of the state to
-        jump into.
-      - If [states[s]] is a part of a final state, [edges[s]] is not used. */
+      - If [states[s]] is a part of a final state, [edges[s]] is not used.
+
+      The transitions are stored in a cuckoo hash table made of the arrays
+      [transition_states], [transition_chars] and [transition_next]. A
+      transition from state [s] with character [c] to state [n] is stored at
+      one of the two indexes [transition_slot(h, s, c)], the three arrays
+      containing [s], [c] and [n] at this index. Empty slots contain the state
+      [0], which is not an intermediate state. Lookups probe at most two
+      slots. */
 }
@@ -10,6 +10,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -84,6 +85,8 @@ public final class Config
       [get_current_layout()] and [set_current_layout()]. */
   int current_layout_portrait;
   int current_layout_landscape;
+  /** The resources configuration at the last [refresh]. */
+  private Configuration _refreshed_configuration;
 
   private Config(SharedPreferences prefs, Resources res, IKeyEventHandler h)
   {
@@ -118,6 +121,118 @@ public final class Config
    ** Reload prefs
    */
   public void refresh(Resources res)
+  {
+    _modified_layouts.clear();
+    _refreshed_configuration = new Configuration(res.getConfiguration());
+    layouts = LayoutsPreference.load_from_preferences(res, _prefs);
+    refresh_extra_keys();
+    refresh_values(res);
+  }
+
+  /** Values returned by [refresh_pref], or-ed together. */
+  public static final int CHANGED_NOTHING = 0;
+  /** The layouts must be modified again. */
+  public static final int CHANGED_LAYOUTS = 1;
+  /** The size or the look of the keyboard changed. */
+  public static final int CHANGED_VIEW = 2;
+  /** The views must be re-created. */
+  public static final int CHANGED_THEME = 4;
+
+  /** Update what depends on the preference [key], which just changed. Much
+      cheaper than [refresh], custom layouts are parsed again only when the
+      list of layouts changed. Returns a combination of [CHANGED_*]. */
+  public int refresh_pref(Resources res, String key)
+  {
+    // [key] is null when the preferences have been cleared.
+    if (key == null || resources_changed(res))
+    {
+      refresh(res);
+      return CHANGED_LAYOUTS | CHANGED_VIEW | CHANGED_THEME;
+    }
+    int changed = changes_of_pref(key);
+    switch (key)
+    {
+      case "current_layout_portrait":
+      case "current_layout_landscape":
+        // Written by [set_current_layout], already up to date.
+        return CHANGED_NOTHING;
+      case "layouts":
+        layouts = LayoutsPreference.load_from_preferences(res, _prefs);
+        break;
+      case "custom_extra_keys":
+        refresh_extra_keys();
+        break;
+      default:
+        if (key.startsWith("extra_key_"))
+        {
+          refresh_extra_keys();
+          changed |= CHANGED_LAYOUTS;
+        }
+        break;
+    }
+    // The other values are cheap to read again.
+    int prev_theme = theme;
+    refresh_values(res);
+    if (theme != prev_theme)
+      changed |= CHANGED_THEME;
+    if ((changed & CHANGED_LAYOUTS) != 0)
+      _modified_layouts.clear();
+    return changed;
+  }
+
+  static int changes_of_pref(String key)
+  {
+    switch (key)
+    {
+      // Used by [modify_layout].
+      case "layouts":
+      case "custom_extra_keys":
+      case "show_numpad":
+      case "numpad_layout":
+      case "number_row":
+      case "switch_input_immediate":
+      case "lock_double_tap":
+        return CHANGED_LAYOUTS;
+      case "keyboard_height":
+      case "keyboard_height_landscape":
+      case "margin_bottom_portrait":
+      case "margin_bottom_landscape":
+      case "horizontal_margin_portrait":
+      case "horizontal_margin_landscape":
+      case "key_vertical_margin":
+      case "key_horizontal_margin":
+      case "character_size":
+      case "label_brightness":
+      case "keyboard_opacity":
+      case "key_opacity":
+      case "key_activated_opacity":
+      case "border_config":
+      case "custom_border_radius":
+      case "custom_border_line_width":
+        return CHANGED_VIEW;
+      case "theme":
+        return CHANGED_THEME;
+      // The other values are read when they are used.
+      default:
+        return CHANGED_NOTHING;
+    }
+  }
+
+  /** Whether the resources changed since the last [refresh], for example
+      the orientation or the night mode. */
+  public boolean resources_changed(Resources res)
+  {
+    return res.getConfiguration().diff(_refreshed_configuration) != 0;
+  }
+
+  private void refresh_extra_keys()
+  {
+    extra_keys_param = ExtraKeysPreference.get_extra_keys(_prefs);
+    extra_keys_custom = CustomExtraKeysPreference.get(_prefs);
+  }
+
+  /** Values that are cheap to compute. */
+  private void refresh_values(Resources res)
   {
     DisplayMetrics dm = res.getDisplayMetrics();
     orientation_landscape = res.getConfiguration().orientation == Configuration.ORIENTATION_LANDSCAPE;
@@ -138,7 +253,6 @@ public final class Config
     {
       keyboardHeightPercent = _prefs.getInt("keyboard_height", 35);
     }
-    layouts = LayoutsPreference.load_from_preferences(res, _prefs);
     inverse_numpad = _prefs.getString("numpad_layout", "default").equals("low_first");
     add_number_row = _prefs.getBoolean("number_row", false);
     // The baseline for the swipe distance correspond to approximately the
@@ -180,8 +294,6 @@ public final class Config
     theme = getThemeId(res, _prefs.getString("theme", ""));
     autocapitalisation = _prefs.getBoolean("autocapitalisation", true);
     switch_input_immediate = _prefs.getBoolean("switch_input_immediate", false);
-    extra_keys_param = ExtraKeysPreference.get_extra_keys(_prefs);
-    extra_keys_custom = CustomExtraKeysPreference.get(_prefs);
     pin_entry_enabled = _prefs.getBoolean("pin_entry_enabled", true);
     current_layout_portrait = _prefs.getInt("current_layout_portrait", 0);
     current_layout_landscape = _prefs.getInt("current_layout_landscape", 0);
@@ -214,6 +326,18 @@ public final class Config
       KeyValue.getKeyByName("action").withSymbol(actionLabel);
   }
 
+  /** Results of [modify_layout], cleared by [refresh]. The fields that are
+      set outside of [refresh] are part of the key. */
+  private final Map<Modified_layout_key, KeyboardData> _modified_layouts =
+    new LinkedHashMap<Modified_layout_key, KeyboardData>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Modified_layout_key, KeyboardData> e)
+      {
+        return size() > MODIFIED_LAYOUTS_CACHE_SIZE;
+      }
+    };
+  static final int MODIFIED_LAYOUTS_CACHE_SIZE = 16;
+
   /** Update the layout according to the configuration.
    *  - Remove the switching key if it isn't needed
    *  - Remove "localized" keys from other locales (not in 'extra_keys')
@@ -221,8 +345,21 @@ public final class Config
    *  - Swap the enter and action keys
    *  - Add the optional numpad and number row
    *  - Add the extra keys
+   *  The result is cached.
    */
   public KeyboardData modify_layout(KeyboardData kw)
+  {
+    Modified_layout_key key = new Modified_layout_key(kw, this);
+    KeyboardData modified = _modified_layouts.get(key);
+    if (modified == null)
+    {
+      modified = modify_layout_uncached(kw);
+      _modified_layouts.put(key, modified);
+    }
+    return modified;
+  }
+
+  KeyboardData modify_layout_uncached(KeyboardData kw)
   {
     final KeyValue action_key = action_key();
     // Extra keys are removed from the set as they are encountered during the
@@ -309,6 +446,47 @@ public final class Config
     return kw;
   }
 
+  /** The source layout and the fields used by [modify_layout] that can
+      change between two calls to [refresh]. */
+  static final class Modified_layout_key
+  {
+    final KeyboardData kw;
+    final ExtraKeys extra_keys_subtype;
+    final String action_label;
+    final boolean swap_enter_action_key;
+    final boolean offer_voice_typing;
+
+    public Modified_layout_key(KeyboardData kw_, Config c)
+    {
+      kw = kw_;
+      extra_keys_subtype = c.extra_keys_subtype;
+      action_label = c.actionLabel;
+      swap_enter_action_key = c.swapEnterActionKey;
+      offer_voice_typing = c.shouldOfferVoiceTyping;
+    }
+
+    @Override
+    public int hashCode()
+    {
+      int h = System.identityHashCode(kw);
+      h = h * 31 + System.identityHashCode(extra_keys_subtype);
+      h = h * 31 + ((action_label == null) ? 0 : action_label.hashCode());
+      h = h * 31 + (swap_enter_action_key ? 1 : 0);
+      return h * 31 + (offer_voice_typing ? 1 : 0);
+    }
+
+    @Override
+    public boolean equals(Object obj)
+    {
+      Modified_layout_key k = (Modified_layout_key)obj;
+      return kw == k.kw && extra_keys_subtype == k.extra_keys_subtype
+        && (action_label == null ? k.action_label == null
+            : action_label.equals(k.action_label))
+        && swap_enter_action_key == k.swap_enter_action_key
+        && offer_voice_typing == k.offer_voice_typing;
+    }
+  }
+
   /** Handle the numpad layout. The [main_kw] is used to adapt the numpad to
       the main layout's script. */
   public KeyboardData modify_numpad(KeyboardData kw, KeyboardData main_kw)
@@ -1,12 +1,11 @@
 package juloo.keyboard2;
 
 import android.content.res.Resources;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.IOException;
-import java.io.BufferedReader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 
 public class Emoji
@@ -23,54 +22,212 @@ public class Emoji
     return _kv;
   }
 
+  static final String ASSET_NAME = "emojis.bin";
+  static final int VERSION = 2;
+  static final int HEADER_SIZE = 5;
 
-  private final static List<Emoji> _all = new ArrayList<>();
-  private final static List<List<Emoji>> _groups = new ArrayList<>();
-  private final static HashMap<String, Emoji> _stringMap = new HashMap<>();
+  /** Contents of [assets/emojis.bin], generated by [gen_emoji.py], see the
+      format there. Read as an array of chars. The emojis are decoded when
+      their group is requested or when they are looked up by
+      [getEmojiByString]. */
+  private static CharBuffer _data = null;
+  private static int _bounds_start;
+  private static int _offsets_start;
+  private static int _sorted_start;
+  private static int _payload_start;
+  /** Search index, used by [EmojiSearch]. */
+  private static int _n_tokens;
+  private static int _token_offsets_start;
+  private static int _postings_offsets_start;
+  private static int _postings_start;
+  private static int _tokens_start;
+  /** Emojis decoded so far, indexed like in the file. */
+  private static Emoji[] _emojis;
+  private static ArrayList<List<Emoji>> _groups;
 
-  public static void init(Resources res)
+  public static synchronized void init(Resources res)
   {
-    if (!_all.isEmpty())
+    if (_data != null)
       return;
-
     try
     {
-      InputStream inputStream = res.openRawResource(R.raw.emojis);
-      BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream));
-      String line;
+      ByteBuffer b = Utils.map_asset(res.getAssets(), ASSET_NAME);
+      if (b.limit() < HEADER_SIZE * 2 || b.get(0) != 'K' || b.get(1) != 'B'
+          || b.get(2) != 'E' || b.get(3) != 'M')
+        throw new Exception("Not an emojis file");
+      CharBuffer data = b.asCharBuffer();
+      if (data.get(2) != VERSION)
+        throw new Exception("Unsupported emojis version");
+      int n_emojis = data.get(3);
+      int n_bounds = data.get(4);
+      _bounds_start = HEADER_SIZE;
+      _offsets_start = _bounds_start + n_bounds;
+      _sorted_start = _offsets_start + n_emojis + 1;
+      _payload_start = _sorted_start + n_emojis;
+      int index_start = _payload_start + data.get(_offsets_start + n_emojis);
+      _n_tokens = data.get(index_start);
+      _token_offsets_start = index_start + 1;
+      _postings_offsets_start = _token_offsets_start + _n_tokens + 1;
+      _postings_start = _postings_offsets_start + _n_tokens + 1;
+      _tokens_start = _postings_start + data.get(_postings_offsets_start + _n_tokens);
+      _emojis = new Emoji[n_emojis];
+      _groups = new ArrayList<List<Emoji>>(
+          Collections.<List<Emoji>>nCopies(Math.max(0, n_bounds - 1), null));
+      _data = data;
+    }
+    catch (Exception e) { Logs.exn("Emoji.init() failed", e); }
+  }
 
-      // Read emoji (until empty line)
-      while (!(line = reader.readLine()).isEmpty())
-      {
-        Emoji e = new Emoji(line);
-        _all.add(e);
-        _stringMap.put(line, e);
-      }
+  public static synchronized int getNumGroups()
+  {
+    return (_data == null) ? 0 : _groups.size();
+  }
 
-      // Read group indices
-      if ((line = reader.readLine()) != null)
-      {
-        String[] tokens = line.split(" ");
-        for (int i = 0; i < tokens.length-1; i++)
-          _groups.add(_all.subList(Integer.parseInt(tokens[i]), Integer.parseInt(tokens[i+1])));
-      }
+  public static synchronized List<Emoji> getEmojisByGroup(int groupIndex)
+  {
+    List<Emoji> group = _groups.get(groupIndex);
+    if (group == null)
+    {
+      int start = _data.get(_bounds_start + groupIndex);
+      int end = _data.get(_bounds_start + groupIndex + 1);
+      Emoji[] emojis = new Emoji[end - start];
+      for (int i = start; i < end; i++)
+        emojis[i - start] = get_emoji(i);
+      group = Arrays.asList(emojis);
+      _groups.set(groupIndex, group);
+    }
+    return group;
+  }
+
+  /** Binary search in the sorted index. */
+  public static synchronized Emoji getEmojiByString(String value)
+  {
+    if (_data == null)
+      return null;
+    int lo = 0;
+    int hi = _emojis.length;
+    while (lo < hi)
+    {
+      int mid = (lo + hi) >>> 1;
+      int i = _data.get(_sorted_start + mid);
+      int c = compare_emoji(value, i);
+      if (c == 0)
+        return get_emoji(i);
+      if (c < 0)
+        hi = mid;
+      else
+        lo = mid + 1;
+    }
+    return null;
+  }
+
+  public static synchronized int num_tokens()
+  {
+    return (_data == null) ? 0 : _n_tokens;
+  }
+
+  /** Tokens that start with [prefix], searched between [lo] and [hi]. The
+      result is packed as [lo << 16 | hi]. Tokens are sorted, the tokens
+      starting with a given prefix are contiguous. */
+  public static synchronized int token_range(String prefix, int lo, int hi)
+  {
+    int start = lo;
+    int end = hi;
+    // Lower bound: first token not smaller than [prefix].
+    while (start < end)
+    {
+      int mid = (start + end) >>> 1;
+      if (compare_token_prefix(prefix, mid) > 0)
+        start = mid + 1;
+      else
+        end = mid;
     }
-    catch (IOException e) { Logs.exn("Emoji.init() failed", e); }
+    end = hi;
+    lo = start;
+    // Upper bound: first token that doesn't start with [prefix].
+    while (start < end)
+    {
+      int mid = (start + end) >>> 1;
+      if (compare_token_prefix(prefix, mid) >= 0)
+        start = mid + 1;
+      else
+        end = mid;
+    }
+    return (lo << 16) | start;
   }
 
-  public static int getNumGroups()
+  /** Indexes of the emojis whose name contains a token in the range
+      [lo, hi), sorted and without duplicates. */
+  public static synchronized int[] token_emojis(int lo, int hi)
   {
-    return _groups.size();
+    int start = _postings_start + _data.get(_postings_offsets_start + lo);
+    int end = _postings_start + _data.get(_postings_offsets_start + hi);
+    int[] r = new int[end - start];
+    for (int i = start; i < end; i++)
+      r[i - start] = _data.get(i);
+    if (hi - lo <= 1)
+      return r;
+    Arrays.sort(r);
+    int n = 0;
+    for (int i = 0; i < r.length; i++)
+      if (n == 0 || r[n - 1] != r[i])
+        r[n++] = r[i];
+    return Arrays.copyOf(r, n);
   }
 
-  public static List<Emoji> getEmojisByGroup(int groupIndex)
+  /** The emojis at the first [n] indexes in [indexes]. */
+  public static synchronized List<Emoji> get_emojis(int[] indexes, int n)
   {
-    return _groups.get(groupIndex);
+    Emoji[] emojis = new Emoji[n];
+    for (int i = 0; i < n; i++)
+      emojis[i] = get_emoji(indexes[i]);
+    return Arrays.asList(emojis);
   }
 
-  public static Emoji getEmojiByString(String value)
+  /** Compare [prefix] with the first chars of the token [t]. Returns [0] if
+      the token starts with [prefix]. */
+  private static int compare_token_prefix(String prefix, int t)
   {
-    return _stringMap.get(value);
+    int start = _tokens_start + _data.get(_token_offsets_start + t);
+    int len = _tokens_start + _data.get(_token_offsets_start + t + 1) - start;
+    int n = Math.min(prefix.length(), len);
+    for (int k = 0; k < n; k++)
+    {
+      int d = prefix.charAt(k) - _data.get(start + k);
+      if (d != 0)
+        return d;
+    }
+    return (prefix.length() > len) ? 1 : 0;
+  }
+
+  /** Decode the emoji at index [i] in the file the first time. */
+  private static Emoji get_emoji(int i)
+  {
+    Emoji e = _emojis[i];
+    if (e == null)
+    {
+      int start = _payload_start + _data.get(_offsets_start + i);
+      int end = _payload_start + _data.get(_offsets_start + i + 1);
+      e = new Emoji(_data.subSequence(start, end).toString());
+      _emojis[i] = e;
+    }
+    return e;
+  }
+
+  /** Like [s.compareTo()] with the emoji at index [i], without decoding
+      it. */
+  private static int compare_emoji(String s, int i)
+  {
+    int start = _payload_start + _data.get(_offsets_start + i);
+    int len = _payload_start + _data.get(_offsets_start + i + 1) - start;
+    int n = Math.min(s.length(), len);
+    for (int k = 0; k < n; k++)
+    {
+      int d = s.charAt(k) - _data.get(start + k);
+      if (d != 0)
+        return d;
+    }
+    return s.length() - len;
   }
 
   public static String mapOldNameToValue(String name) throws IllegalArgumentException
@@ -0,0 +1,151 @@
+package juloo.keyboard2;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/** Emojis rendered into bitmaps, used by [EmojiGridView]. Shaping and
+    rasterizing emojis is slow, especially sequences joined with ZWJ and
+    flags. The least recently used bitmaps are evicted when the total size
+    exceeds [_max_bytes]. Bitmaps can be rendered in the background with
+    [prewarm]. */
+public final class EmojiGlyphCache
+{
+  /** Number of emojis rendered by [prewarm], a few screens. */
+  static final int PREWARM_COUNT = 120;
+  static final int MIN_MAX_BYTES = 4 * 1024 * 1024;
+
+  private final LinkedHashMap<Key, Bitmap> _bitmaps =
+    new LinkedHashMap<Key, Bitmap>(64, 0.75f, true);
+  private final Key _probe = new Key(null, 0.f, 0);
+  private final int _max_bytes;
+  private int _bytes = 0;
+  /** Incremented to cancel the running [prewarm]. */
+  private int _prewarm_generation = 0;
+
+  private EmojiGlyphCache(int max_bytes)
+  {
+    _max_bytes = max_bytes;
+  }
+
+  private static EmojiGlyphCache _instance = null;
+
+  public static synchronized EmojiGlyphCache get()
+  {
+    if (_instance == null)
+      _instance = new EmojiGlyphCache((int)Math.max(MIN_MAX_BYTES,
+            Runtime.getRuntime().maxMemory() / 16));
+    return _instance;
+  }
+
+  /** Render the emoji if it's not in the cache. Rendering is done outside of
+      the lock, the same emoji might be rendered twice. */
+  public Bitmap get(String emoji, float text_size, int color)
+  {
+    synchronized (this)
+    {
+      _probe.emoji = emoji;
+      _probe.text_size = text_size;
+      _probe.color = color;
+      Bitmap b = _bitmaps.get(_probe);
+      if (b != null)
+        return b;
+    }
+    Bitmap b = render(emoji, text_size, color);
+    synchronized (this)
+    {
+      Bitmap prev = _bitmaps.put(new Key(emoji, text_size, color), b);
+      if (prev != null)
+        _bytes -= bytes(prev);
+      _bytes += bytes(b);
+      // Bitmaps are not recycled, they might still be drawn.
+      Iterator<Map.Entry<Key, Bitmap>> it = _bitmaps.entrySet().iterator();
+      while (_bytes > _max_bytes && it.hasNext())
+      {
+        _bytes -= bytes(it.next().getValue());
+        it.remove();
+      }
+    }
+    return b;
+  }
+
+  /** Render the first emojis of [emojis] in the background. Cancels the
+      previous call. */
+  public void prewarm(final List<Emoji> emojis, final float text_size,
+      final int color)
+  {
+    final int generation;
+    synchronized (this)
+    {
+      generation = ++_prewarm_generation;
+    }
+    Utils.background_handler().post(new Runnable()
+        {
+          public void run()
+          {
+            int n = Math.min(emojis.size(), PREWARM_COUNT);
+            for (int i = 0; i < n; i++)
+            {
+              synchronized (EmojiGlyphCache.this)
+              {
+                if (generation != _prewarm_generation)
+                  return;
+              }
+              get(emojis.get(i).kv().getString(), text_size, color);
+            }
+          }
+        });
+  }
+
+  static Bitmap render(String emoji, float text_size, int color)
+  {
+    Paint p = new Paint(Paint.ANTI_ALIAS_FLAG);
+    p.setTextSize(text_size);
+    p.setColor(color);
+    Paint.FontMetrics fm = p.getFontMetrics();
+    int w = Math.max(1, (int)Math.ceil(p.measureText(emoji)));
+    int h = Math.max(1, (int)Math.ceil(fm.bottom - fm.top));
+    Bitmap b = Bitmap.createBitmap(w, h, Bitmap.Config.ARGB_8888);
+    new Canvas(b).drawText(emoji, 0, -fm.top, p);
+    return b;
+  }
+
+  static int bytes(Bitmap b)
+  {
+    return b.getRowBytes() * b.getHeight();
+  }
+
+  /** Text size and color are part of the key as they depend on the theme. */
+  static final class Key
+  {
+    String emoji;
+    float text_size;
+    int color;
+
+    public Key(String e, float s, int c)
+    {
+      emoji = e;
+      text_size = s;
+      color = c;
+    }
+
+    @Override
+    public int hashCode()
+    {
+      return (emoji.hashCode() * 31 + Float.floatToIntBits(text_size)) * 31
+        + color;
+    }
+
+    @Override
+    public boolean equals(Object obj)
+    {
+      Key snd = (Key)obj;
+      return emoji.equals(snd.emoji) && text_size == snd.text_size
+        && color == snd.color;
+    }
+  }
+}
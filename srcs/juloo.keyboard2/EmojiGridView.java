@@ -2,18 +2,17 @@ package juloo.keyboard2;
 
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.content.res.TypedArray;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
 import android.util.AttributeSet;
-import android.view.ContextThemeWrapper;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.AdapterView;
 import android.widget.BaseAdapter;
 import android.widget.GridView;
-import android.widget.TextView;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
@@ -23,10 +22,12 @@ public class EmojiGridView extends GridView
 {
   public static final int GROUP_LAST_USE = -1;
 
-  private static final String LAST_USE_PREF = "emoji_last_use";
+  /** Replaced by [EmojiRecents.PREF]. */
+  static final String LAST_USE_PREF = "emoji_last_use";
 
   private List<Emoji> _emojiArray;
-  private HashMap<Emoji, Integer> _lastUsed;
+  private EmojiRecents _recents;
+  private EmojiSearch _search = null;
 
   /*
    ** TODO: adapt column width and emoji size
@@ -39,75 +40,95 @@ public class EmojiGridView extends GridView
     migrateOldPrefs(); // TODO: Remove at some point in future
     setOnItemClickListener(this);
     loadLastUsed();
-    setEmojiGroup((_lastUsed.size() == 0) ? 0 : GROUP_LAST_USE);
+    setEmojiGroup((_recents.size() == 0) ? 0 : GROUP_LAST_USE);
   }
 
   public void setEmojiGroup(int group)
   {
-    _emojiArray = (group == GROUP_LAST_USE) ? getLastEmojis() : Emoji.getEmojisByGroup(group);
-    setAdapter(new EmojiViewAdpater(getContext(), _emojiArray));
+    setEmojis((group == GROUP_LAST_USE) ? getLastEmojis() : Emoji.getEmojisByGroup(group));
+  }
+
+  /** Show the emojis matching [query]. Should be called again when the query
+      changes, the search is incremental. */
+  public void search(String query)
+  {
+    if (_search == null)
+      _search = new EmojiSearch();
+    setEmojis(_search.search(query));
+  }
+
+  private void setEmojis(List<Emoji> emojis)
+  {
+    _emojiArray = emojis;
+    EmojiViewAdpater adapter = new EmojiViewAdpater(getContext(), _emojiArray);
+    setAdapter(adapter);
+    adapter.prewarm();
   }
 
   public void onItemClick(AdapterView<?> parent, View v, int pos, long id)
   {
     Config config = Config.globalConfig();
-    Integer used = _lastUsed.get(_emojiArray.get(pos));
-    _lastUsed.put(_emojiArray.get(pos), (used == null) ? 1 : used.intValue() + 1);
-    config.handler.key_up(_emojiArray.get(pos).kv(), Pointers.Modifiers.EMPTY);
-    saveLastUsed(); // TODO: opti
+    Emoji emoji = _emojiArray.get(pos);
+    _recents.used(emoji);
+    config.handler.key_up(emoji.kv(), Pointers.Modifiers.EMPTY);
   }
 
-  private List<Emoji> getLastEmojis()
+  @Override
+  protected void onDetachedFromWindow()
   {
-    List<Emoji> list = new ArrayList<>(_lastUsed.keySet());
-    Collections.sort(list, new Comparator<Emoji>()
-        {
-          public int compare(Emoji a, Emoji b)
-          {
-            return _lastUsed.get(b) - _lastUsed.get(a);
-          }
-        });
-    return list;
+    super.onDetachedFromWindow();
+    _recents.flush();
   }
 
-  private void saveLastUsed()
+  private List<Emoji> getLastEmojis()
   {
-    SharedPreferences.Editor edit;
-    try { edit = emojiSharedPreferences().edit(); }
-    catch (Exception _e) { return; }
-    HashSet<String> set = new HashSet<String>();
-    for (Emoji emoji : _lastUsed.keySet())
-      set.add(String.valueOf(_lastUsed.get(emoji)) + "-" + emoji.kv().getString());
-    edit.putStringSet(LAST_USE_PREF, set);
-    edit.apply();
+    return _recents.top(EmojiRecents.MAX_SIZE);
   }
 
+  /** Shared by the emoji pane and [EmojiSearchPane], which would otherwise
+      overwrite each other's changes. Not kept if the storage is not
+      available. */
+  private static EmojiRecents _shared_recents = null;
+
   private void loadLastUsed()
   {
-    _lastUsed = new HashMap<Emoji, Integer>();
+    if (_shared_recents != null)
+    {
+      _recents = _shared_recents;
+      return;
+    }
     SharedPreferences prefs;
     // Storage might not be available (eg. the device is locked), avoid
     // crashing.
     try { prefs = emojiSharedPreferences(); }
-    catch (Exception _e) { return; }
-    Set<String> lastUseSet = prefs.getStringSet(LAST_USE_PREF, null);
-    if (lastUseSet != null)
-      for (String emojiData : lastUseSet)
-      {
-        String[] data = emojiData.split("-", 2);
-        Emoji emoji;
-        if (data.length != 2)
-          continue ;
-        emoji = Emoji.getEmojiByString(data[1]);
-        if (emoji == null)
-          continue ;
-        _lastUsed.put(emoji, Integer.valueOf(data[0]));
-      }
+    catch (Exception _e) { prefs = null; }
+    _recents = new EmojiRecents(prefs);
+    if (prefs != null)
+      _shared_recents = _recents;
   }
 
   SharedPreferences emojiSharedPreferences()
   {
-    return getContext().getSharedPreferences("emoji_last_use", Context.MODE_PRIVATE);
+    return emojiSharedPreferences(getContext());
+  }
+
+  static SharedPreferences emojiSharedPreferences(Context context)
+  {
+    return context.getSharedPreferences("emoji_last_use", Context.MODE_PRIVATE);
+  }
+
+  /** Load what the view needs when it's created: the emojis, decoded for
+      every groups as [EmojiGroupButtonsBar] shows the first emoji of each
+      group, and the preferences. Meant to be called from a background
+      thread. */
+  public static void preload(Context context)
+  {
+    Emoji.init(context.getResources());
+    for (int i = 0; i < Emoji.getNumGroups(); i++)
+      Emoji.getEmojisByGroup(i);
+    // Reading a preference waits until the file is loaded.
+    try { emojiSharedPreferences(context).contains(LAST_USE_PREF); }
+    catch (Exception _e) {}
   }
 
   private void migrateOldPrefs()
@@ -141,29 +162,74 @@ public class EmojiGridView extends GridView
     }
   }
 
-  static class EmojiView extends TextView
+  /** Draws an emoji from [EmojiGlyphCache], which is faster than a
+      [TextView]. */
+  static class EmojiView extends View
   {
-    public EmojiView(Context context)
+    final float _text_size;
+    final int _color;
+    final int _height;
+    String _emoji = null;
+
+    public EmojiView(Context context, float text_size, int color)
     {
       super(context);
+      _text_size = text_size;
+      _color = color;
+      Paint p = new Paint();
+      p.setTextSize(text_size);
+      Paint.FontMetrics fm = p.getFontMetrics();
+      _height = (int)Math.ceil(fm.bottom - fm.top);
     }
 
     public void setEmoji(Emoji emoji)
     {
-      setText(emoji.kv().getString());
+      _emoji = emoji.kv().getString();
+      invalidate();
+    }
+
+    @Override
+    protected void onMeasure(int widthSpec, int heightSpec)
+    {
+      setMeasuredDimension(MeasureSpec.getSize(widthSpec),
+          resolveSize(_height, heightSpec));
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas)
+    {
+      if (_emoji == null)
+        return;
+      Bitmap b = EmojiGlyphCache.get().get(_emoji, _text_size, _color);
+      canvas.drawBitmap(b, (getWidth() - b.getWidth()) / 2f,
+          (getHeight() - b.getHeight()) / 2f, null);
     }
   }
 
   static class EmojiViewAdpater extends BaseAdapter
   {
-    Context _button_context;
+    Context _context;
+    float _text_size;
+    int _color;
 
     List<Emoji> _emojiArray;
 
     public EmojiViewAdpater(Context context, List<Emoji> emojiArray)
     {
-      _button_context = new ContextThemeWrapper(context, R.style.emojiGridButton);
+      _context = context;
       _emojiArray = emojiArray;
+      _text_size = context.getResources().getDimension(R.dimen.emoji_text_size);
+      TypedArray a = context.getTheme().obtainStyledAttributes(
+          new int[]{ R.attr.emoji_color });
+      _color = a.getColor(0, Color.BLACK);
+      a.recycle();
+    }
+
+    /** Render the first emojis in the background. */
+    public void prewarm()
+    {
+      if (_emojiArray != null)
+        EmojiGlyphCache.get().prewarm(_emojiArray, _text_size, _color);
     }
 
     public int getCount()
@@ -188,7 +254,7 @@ public class EmojiGridView extends GridView
       EmojiView view = (EmojiView)convertView;
 
       if (view == null)
-        view = new EmojiView(_button_context);
+        view = new EmojiView(_context, _text_size, _color);
       view.setEmoji(_emojiArray.get(pos));
       return view;
     }
@@ -14,6 +14,9 @@ public class EmojiGroupButtonsBar extends LinearLayout
 {
   private EmojiGridView _emoji_grid = null;
 
+  /** Group id of the button that opens [EmojiSearchPane]. */
+  static final int SEARCH = -2;
+
   public EmojiGroupButtonsBar(Context context, AttributeSet attrs)
   {
     super(context, attrs);
@@ -24,6 +27,7 @@ public class EmojiGroupButtonsBar extends LinearLayout
       Emoji first = Emoji.getEmojisByGroup(i).get(0);
       add_group(i, first.kv().getString());
     }
+    add_group(SEARCH, "\uD83D\uDD0D");
   }
 
   void add_group(int id, String symbol)
@@ -55,6 +59,13 @@ public class EmojiGroupButtonsBar extends LinearLayout
     {
       if (event.getAction() != MotionEvent.ACTION_DOWN)
         return false;
+      if (_group_id == SEARCH)
+      {
+        Config.globalConfig().handler.key_up(
+            KeyValue.getKeyByName("switch_emoji_search"),
+            Pointers.Modifiers.EMPTY);
+        return true;
+      }
       get_emoji_grid().setEmojiGroup(_group_id);
       return true;
     }
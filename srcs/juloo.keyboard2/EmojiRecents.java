@@ -0,0 +1,203 @@
+package juloo.keyboard2;
+
+import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.Looper;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+/** Emojis used recently, ranked by the number of times they were used with a
+    decay over time. At most [MAX_SIZE] emojis are kept, the least used are
+    forgotten. Changes are saved into the preferences after a delay. */
+public final class EmojiRecents
+{
+  static final int MAX_SIZE = 64;
+  /** A use counts for half after this time. */
+  static final long HALF_LIFE_MS = 14L * 24 * 3600 * 1000;
+  static final long SAVE_DELAY_MS = 3000;
+  static final String PREF = "emoji_recents";
+
+  /** Sorted by decreasing score. A use at time [t] adds
+      [2^((t - _epoch) / HALF_LIFE_MS)] to the score of an emoji, which is
+      equivalent to decaying every scores over time. [_epoch] is moved forward
+      before the weights become too large. */
+  private final Emoji[] _emojis = new Emoji[MAX_SIZE];
+  private final double[] _scores = new double[MAX_SIZE];
+  private int _size = 0;
+  private long _epoch;
+
+  /** [null] if the storage is not available. */
+  private final SharedPreferences _prefs;
+  private final Handler _handler;
+  private boolean _save_pending = false;
+
+  public EmojiRecents(SharedPreferences prefs)
+  {
+    _prefs = prefs;
+    _handler = new Handler(Looper.getMainLooper());
+    _epoch = System.currentTimeMillis();
+    if (prefs != null)
+      load(prefs);
+  }
+
+  public int size()
+  {
+    return _size;
+  }
+
+  /** The [k] most used emojis, the most used first. */
+  public List<Emoji> top(int k)
+  {
+    int n = Math.min(k, _size);
+    List<Emoji> l = new ArrayList<Emoji>(n);
+    for (int i = 0; i < n; i++)
+      l.add(_emojis[i]);
+    return l;
+  }
+
+  public void used(Emoji e)
+  {
+    double w = weight(System.currentTimeMillis());
+    int i = index_of(e);
+    if (i < 0)
+    {
+      // Replace the least used emoji if full.
+      i = (_size < MAX_SIZE) ? _size++ : _size - 1;
+      _emojis[i] = e;
+      _scores[i] = 0.0;
+    }
+    _scores[i] += w;
+    move_up(i);
+    schedule_save();
+  }
+
+  /** Save now if a save is pending. */
+  public void flush()
+  {
+    if (!_save_pending)
+      return;
+    _handler.removeCallbacks(_save_runnable);
+    _save_runnable.run();
+  }
+
+  private int index_of(Emoji e)
+  {
+    for (int i = 0; i < _size; i++)
+      if (_emojis[i] == e)
+        return i;
+    return -1;
+  }
+
+  /** Restore the order after the score at [i] increased. */
+  private void move_up(int i)
+  {
+    Emoji e = _emojis[i];
+    double s = _scores[i];
+    for (; i > 0 && _scores[i - 1] < s; i--)
+    {
+      _emojis[i] = _emojis[i - 1];
+      _scores[i] = _scores[i - 1];
+    }
+    _emojis[i] = e;
+    _scores[i] = s;
+  }
+
+  /** Weight of a use at time [now]. */
+  private double weight(long now)
+  {
+    double half_lives = (now - _epoch) / (double)HALF_LIFE_MS;
+    if (half_lives > 32.0)
+    {
+      double f = Math.pow(2.0, half_lives);
+      for (int i = 0; i < _size; i++)
+        _scores[i] /= f;
+      _epoch = now;
+      half_lives = 0.0;
+    }
+    return Math.pow(2.0, half_lives);
+  }
+
+  private void schedule_save()
+  {
+    if (_prefs == null || _save_pending)
+      return;
+    _save_pending = true;
+    _handler.postDelayed(_save_runnable, SAVE_DELAY_MS);
+  }
+
+  /** Encoded as the epoch on the first line followed by a line for each
+      emoji: the score, a space and the emoji. [apply()] writes the
+      preferences in the background. */
+  private final Runnable _save_runnable = new Runnable()
+  {
+    public void run()
+    {
+      _save_pending = false;
+      StringBuilder b = new StringBuilder();
+      b.append(_epoch);
+      for (int i = 0; i < _size; i++)
+      {
+        b.append('\n');
+        b.append((float)_scores[i]);
+        b.append(' ');
+        b.append(_emojis[i].kv().getString());
+      }
+      _prefs.edit()
+        .putString(PREF, b.toString())
+        .remove(EmojiGridView.LAST_USE_PREF)
+        .apply();
+    }
+  };
+
+  private void load(SharedPreferences prefs)
+  {
+    String saved = prefs.getString(PREF, null);
+    if (saved != null)
+    {
+      String[] lines = saved.split("\n");
+      try
+      {
+        _epoch = Long.parseLong(lines[0]);
+        for (int i = 1; i < lines.length; i++)
+        {
+          String[] entry = lines[i].split(" ", 2);
+          if (entry.length == 2)
+            add_loaded(entry[1], Double.parseDouble(entry[0]));
+        }
+      }
+      catch (NumberFormatException _e) {}
+      return;
+    }
+    // Format used by previous versions, a count and an emoji separated by a
+    // dash.
+    Set<String> last_use = prefs.getStringSet(EmojiGridView.LAST_USE_PREF, null);
+    if (last_use == null)
+      return;
+    for (String entry : last_use)
+    {
+      String[] data = entry.split("-", 2);
+      if (data.length != 2)
+        continue;
+      try { add_loaded(data[1], Integer.parseInt(data[0])); }
+      catch (NumberFormatException _e) {}
+    }
+  }
+
+  private void add_loaded(String value, double score)
+  {
+    Emoji e = Emoji.getEmojiByString(value);
+    if (e == null || index_of(e) >= 0)
+      return;
+    int i;
+    if (_size < MAX_SIZE)
+      i = _size++;
+    else if (score > _scores[_size - 1])
+      i = _size - 1;
+    else
+      return;
+    _emojis[i] = e;
+    _scores[i] = score;
+    move_up(i);
+  }
+}
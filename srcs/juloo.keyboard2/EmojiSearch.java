@@ -0,0 +1,111 @@
+package juloo.keyboard2;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/** Search emojis by name using the token index of [assets/emojis.bin]. Each
+    word of the query must be the prefix of a word in the name of the emoji.
+    Meant to be called on every keystroke: when the query is the previous one
+    with more characters, the ranges of tokens are narrowed and the previous
+    results are filtered instead of searching again. */
+public final class EmojiSearch
+{
+  private String[] _words = new String[0];
+  /** Range of tokens matching each word, packed like the result of
+      [Emoji.token_range]. */
+  private int[] _ranges = new int[0];
+  /** Indexes of the emojis matching every words, sorted in the order of the
+      file. */
+  private int[] _results = new int[0];
+  private int _results_len = 0;
+
+  public List<Emoji> search(String query)
+  {
+    String[] words = tokenize(query);
+    if (words.length == 0)
+    {
+      _words = words;
+      _ranges = new int[0];
+      _results_len = 0;
+      return Collections.<Emoji>emptyList();
+    }
+    boolean narrowing = _words.length > 0 && words.length >= _words.length;
+    int[] ranges = new int[words.length];
+    for (int i = 0; i < words.length; i++)
+    {
+      if (i < _words.length && words[i].startsWith(_words[i]))
+      {
+        int prev = _ranges[i];
+        ranges[i] = (words[i].length() == _words[i].length()) ? prev
+          : Emoji.token_range(words[i], prev >>> 16, prev & 0xFFFF);
+      }
+      else
+      {
+        ranges[i] = Emoji.token_range(words[i], 0, Emoji.num_tokens());
+        if (i < _words.length)
+          narrowing = false;
+      }
+    }
+    if (narrowing)
+    {
+      for (int i = 0; i < words.length; i++)
+        if (i >= _ranges.length || ranges[i] != _ranges[i])
+          intersect(ranges[i]);
+    }
+    else
+    {
+      _results = token_emojis(ranges[0]);
+      _results_len = _results.length;
+      for (int i = 1; i < words.length; i++)
+        intersect(ranges[i]);
+    }
+    _words = words;
+    _ranges = ranges;
+    return Emoji.get_emojis(_results, _results_len);
+  }
+
+  /** Keep the results that are matched by the range of tokens [range]. */
+  private void intersect(int range)
+  {
+    if (_results_len == 0)
+      return;
+    int[] matches = token_emojis(range);
+    int n = 0;
+    int j = 0;
+    for (int i = 0; i < _results_len && j < matches.length; i++)
+    {
+      while (j < matches.length && matches[j] < _results[i])
+        j++;
+      if (j < matches.length && matches[j] == _results[i])
+        _results[n++] = _results[i];
+    }
+    _results_len = n;
+  }
+
+  static int[] token_emojis(int range)
+  {
+    return Emoji.token_emojis(range >>> 16, range & 0xFFFF);
+  }
+
+  /** Must split the query like [gen_emoji.py] splits the names. */
+  static String[] tokenize(String query)
+  {
+    List<String> words = new ArrayList<String>();
+    String q = query.toLowerCase(Locale.ROOT);
+    int start = -1;
+    for (int i = 0; i <= q.length(); i++)
+    {
+      boolean in_word = i < q.length() && Character.isLetterOrDigit(q.charAt(i));
+      if (in_word && start < 0)
+        start = i;
+      else if (!in_word && start >= 0)
+      {
+        words.add(q.substring(start, i));
+        start = -1;
+      }
+    }
+    return words.toArray(new String[words.size()]);
+  }
+}
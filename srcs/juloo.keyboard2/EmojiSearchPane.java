@@ -0,0 +1,80 @@
+package juloo.keyboard2;
+
+import android.content.Context;
+import android.util.AttributeSet;
+import android.view.View;
+import android.widget.AdapterView;
+import android.widget.LinearLayout;
+import android.widget.TextView;
+
+/** Search emojis by typing their name with the current layout. While the
+    pane is visible, [KeyEventHandler] sends the typed text here instead of to
+    the editor, see [KeyEventHandler.set_text_target]. The results are updated
+    on every keystroke. */
+public class EmojiSearchPane extends LinearLayout
+  implements KeyEventHandler.TextTarget, AdapterView.OnItemClickListener
+{
+  private KeyEventHandler _handler = null;
+  private final StringBuilder _query = new StringBuilder();
+  private TextView _query_view = null;
+  private EmojiGridView _results = null;
+  private Keyboard2View _keyboard = null;
+
+  public EmojiSearchPane(Context context, AttributeSet attrs)
+  {
+    super(context, attrs);
+  }
+
+  @Override
+  protected void onFinishInflate()
+  {
+    super.onFinishInflate();
+    _query_view = (TextView)findViewById(R.id.emoji_search_query);
+    _results = (EmojiGridView)findViewById(R.id.emoji_grid);
+    _keyboard = (Keyboard2View)findViewById(R.id.emoji_search_keyboard);
+    _results.setOnItemClickListener(this);
+  }
+
+  /** Start a new search. The keyboard shows [layout]. The text target of
+      [handler] must be reset when the pane is hidden. */
+  public void start(KeyboardData layout, KeyEventHandler handler)
+  {
+    _handler = handler;
+    _query.setLength(0);
+    _keyboard.setKeyboard(layout);
+    update();
+    _handler.set_text_target(this);
+  }
+
+  /** The picked emoji is sent to the editor, not to the query. */
+  @Override
+  public void onItemClick(AdapterView<?> parent, View v, int pos, long id)
+  {
+    _handler.set_text_target(null);
+    _results.onItemClick(parent, v, pos, id);
+    _handler.set_text_target(this);
+  }
+
+  @Override
+  public void typed(String text)
+  {
+    _query.append(text);
+    update();
+  }
+
+  @Override
+  public void delete_backward()
+  {
+    int len = _query.length();
+    if (len == 0)
+      return;
+    _query.setLength(_query.offsetByCodePoints(len, -1));
+    update();
+  }
+
+  private void update()
+  {
+    _query_view.setText(_query);
+    _results.search(_query.toString());
+  }
+}
@@ -9,6 +9,12 @@ public final class Gesture
   State state;
 
   public Gesture(int starting_direction)
+  {
+    reset(starting_direction);
+  }
+
+  /** Start a new gesture, reusing this object. */
+  public void reset(int starting_direction)
   {
     current_dir = starting_direction;
     state = State.Swiped;
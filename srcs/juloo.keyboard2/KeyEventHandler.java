@@ -1,7 +1,9 @@
 package juloo.keyboard2;
 
 import android.annotation.SuppressLint;
+import android.os.Handler;
 import android.os.Looper;
+import android.os.SystemClock;
 import android.text.InputType;
 import android.view.KeyEvent;
 import android.view.inputmethod.EditorInfo;
@@ -27,9 +29,48 @@ public final class KeyEventHandler
       [setSelection] could be used instead. */
   boolean _move_cursor_force_fallback = false;
 
+  /** Text and cursor movements are not sent immediately but are accumulated
+      and sent together after the current event is handled, see
+      [schedule_flush] and [flush_output]. At most one of [_pending_text] and
+      [_pending_cursor_move] is not empty. */
+  StringBuilder _pending_text = new StringBuilder();
+  int _pending_cursor_move = 0;
+  boolean _flush_scheduled = false;
+  Handler _flush_handler;
+  /** Pending output is sent at most once per [FLUSH_INTERVAL_MS], about a
+      frame, so that key repeat and fast typing are sent in fewer calls. The
+      first change after a pause is sent without delay. */
+  static final long FLUSH_INTERVAL_MS = 16;
+  long _last_flush_time = -FLUSH_INTERVAL_MS;
+
+  /** Selection in the editor, tracked from the text and cursor movements we
+      send. [-1] when unknown, the editor is then queried with
+      [get_cursor_pos] before the next cursor movement. */
+  int _sel_start = -1;
+  int _sel_end = -1;
+  /** Length of the text, or a lower bound of it if not [_text_len_exact].
+      [-1] when unknown. Cursor movements are clamped to it because the
+      editor ignores selections past the end of the text without reporting
+      it. Measured with [query_text_len] and tracked from the text we send. */
+  int _text_len = -1;
+  boolean _text_len_exact = false;
+  static final int TEXT_LEN_QUERY_MAX = 1024;
+  /** Selections expected to be reported by [selection_updated] for the
+      changes we sent, the oldest first, as pairs of start and end. A report
+      that doesn't match comes from the user or the app, or means that the
+      editor ignored a change, the tracked selection is then forgotten. */
+  final int[] _expected_sels = new int[EXPECTED_SELS_MAX * 2];
+  int _expected_sels_len = 0;
+  static final int EXPECTED_SELS_MAX = 8;
+
+  /** When not [null], typed text and backspace are sent to this instead of
+      the editor, see [set_text_target]. */
+  TextTarget _text_target = null;
+
   public KeyEventHandler(Looper looper, IReceiver recv)
   {
     _recv = recv;
+    _flush_handler = new Handler(looper);
     _autocap = new Autocapitalisation(looper,
         this.new Autocapitalisation_callback());
     _mods = Pointers.Modifiers.EMPTY;
@@ -38,6 +79,10 @@ public final class KeyEventHandler
   /** Editing just started. */
   public void started(EditorInfo info)
   {
+    // Output pending for the previous editor is sent by [finished]. The input
+    // connection is now the new editor's.
+    _pending_text.setLength(0);
+    _pending_cursor_move = 0;
     _autocap.started(info, _recv.getCurrentInputConnection());
     // Workaround a bug in Acode, which answers to [getExtractedText] but do
     // not react to [setSelection] while returning [true].
@@ -45,12 +90,82 @@ public final class KeyEventHandler
     // variations at once.
     _move_cursor_force_fallback = (info.inputType & InputType.TYPE_MASK_VARIATION &
       InputType.TYPE_TEXT_VARIATION_PASSWORD) != 0;
+    _text_len = -1;
+    _text_len_exact = false;
+    set_selection(info.initialSelStart, info.initialSelEnd);
+    _expected_sels_len = 0;
+  }
+
+  /** Editing is finishing, the input connection is still the one of the
+      editor. */
+  public void finished()
+  {
+    flush_output();
+  }
+
+  /** Send the typed text to [target] instead of the editor. Keys that would
+      edit the text or move the cursor are not sent to the editor until this
+      is called again with [null]. */
+  public void set_text_target(TextTarget target)
+  {
+    flush_output();
+    _text_target = target;
   }
 
   /** Selection has been updated. */
-  public void selection_updated(int oldSelStart, int newSelStart)
+  public void selection_updated(int oldSelStart, int newSelStart, int newSelEnd)
   {
     _autocap.selection_updated(oldSelStart, newSelStart);
+    for (int i = 0; i < _expected_sels_len; i++)
+      if (_expected_sels[i * 2] == newSelStart
+          && _expected_sels[i * 2 + 1] == newSelEnd)
+      {
+        // Caused by one of our changes, the older predictions are outdated.
+        int n = _expected_sels_len - i - 1;
+        System.arraycopy(_expected_sels, (i + 1) * 2, _expected_sels, 0, n * 2);
+        _expected_sels_len = n;
+        if (n == 0)
+          set_selection(newSelStart, newSelEnd);
+        return;
+      }
+    // Not caused by one of our changes, the text might have changed too.
+    // Resync the next time the selection is needed.
+    _expected_sels_len = 0;
+    set_selection(-1, -1);
+  }
+
+  /** The tracked selection has been changed by a change sent to the editor
+      and should be reported by [selection_updated]. */
+  void expect_selection()
+  {
+    if (_sel_start < 0)
+      return;
+    if (_expected_sels_len >= EXPECTED_SELS_MAX)
+    {
+      // Too many changes not yet reported, stop predicting.
+      _expected_sels_len = 0;
+      set_selection(-1, -1);
+      return;
+    }
+    _expected_sels[_expected_sels_len * 2] = _sel_start;
+    _expected_sels[_expected_sels_len * 2 + 1] = _sel_end;
+    _expected_sels_len++;
+  }
+
+  /** Set the tracked selection. Negative values mean unknown, the length of
+      the text is then forgotten too. */
+  void set_selection(int start, int end)
+  {
+    if (start < 0 || end < 0)
+    {
+      start = end = -1;
+      _text_len = -1;
+      _text_len_exact = false;
+    }
+    else if (!_text_len_exact) // The text extends at least to the selection.
+      _text_len = Math.max(_text_len, Math.max(start, end));
+    _sel_start = start;
+    _sel_end = end;
   }
 
   /** A key is being pressed. There will not necessarily be a corresponding
@@ -83,13 +198,21 @@ public final class KeyEventHandler
   {
     if (key == null)
       return;
+    if (_text_target != null)
+    {
+      key_up_text_target(key);
+      return;
+    }
     Pointers.Modifiers old_mods = _mods;
     update_meta_state(mods);
     switch (key.getKind())
     {
       case Char: send_text(String.valueOf(key.getChar())); break;
       case String: send_text(key.getString()); break;
-      case Event: _recv.handle_event_key(key.getEvent()); break;
+      case Event:
+        flush_output();
+        _recv.handle_event_key(key.getEvent());
+        break;
       case Keyevent: send_key_down_up(key.getKeyevent()); break;
       case Modifier: break;
       case Editing: handle_editing_key(key.getEditing()); break;
@@ -101,9 +224,31 @@ public final class KeyEventHandler
     update_meta_state(old_mods);
   }
 
+  /** Implementation of [key_up] when [_text_target] is set. Modifiers are not
+      sent to the editor. */
+  void key_up_text_target(KeyValue key)
+  {
+    switch (key.getKind())
+    {
+      case Char: _text_target.typed(String.valueOf(key.getChar())); break;
+      case String: _text_target.typed(key.getString()); break;
+      case Event: _recv.handle_event_key(key.getEvent()); break;
+      case Keyevent:
+        if (key.getKeyevent() == KeyEvent.KEYCODE_DEL)
+          _text_target.delete_backward();
+        break;
+      case Compose_pending:
+        _recv.set_compose_pending(true);
+        break;
+      default: break;
+    }
+  }
+
   @Override
   public void mods_changed(Pointers.Modifiers mods)
   {
+    if (_text_target != null)
+      return;
     update_meta_state(mods);
   }
 
@@ -140,6 +285,8 @@ public final class KeyEventHandler
 
   void sendMetaKey(int eventCode, int meta_flags, boolean down)
   {
+    // Pending cursor movements must be done with the current meta state.
+    flush_output();
     if (down)
     {
       _meta_state = _meta_state | meta_flags;
@@ -183,12 +330,15 @@ public final class KeyEventHandler
    */
   void send_key_down_up(int keyCode)
   {
+    // The effect of a key event on the selection is unknown.
+    set_selection(-1, -1);
     send_keyevent(KeyEvent.ACTION_DOWN, keyCode);
     send_keyevent(KeyEvent.ACTION_UP, keyCode);
   }
 
   void send_keyevent(int eventAction, int eventCode)
   {
+    flush_output();
     InputConnection conn = _recv.getCurrentInputConnection();
     if (conn == null)
       return;
@@ -199,16 +349,74 @@ public final class KeyEventHandler
 
   void send_text(CharSequence text)
   {
+    if (_recv.getCurrentInputConnection() == null)
+      return;
+    if (_pending_cursor_move != 0)
+      flush_output();
+    _pending_text.append(text);
+    schedule_flush();
+    _autocap.typed(text);
+  }
+
+  void schedule_flush()
+  {
+    if (_flush_scheduled)
+      return;
+    _flush_scheduled = true;
+    long at = Math.max(SystemClock.uptimeMillis(),
+        _last_flush_time + FLUSH_INTERVAL_MS);
+    _flush_handler.postAtTime(_flush_runnable, at);
+  }
+
+  final Runnable _flush_runnable = new Runnable()
+  {
+    public void run()
+    {
+      _flush_scheduled = false;
+      flush_output();
+    }
+  };
+
+  /** Send the pending text or cursor movement. Called before anything else
+      is sent to the editor to keep the order of events. Pending output is
+      sent inside a batch edit to avoid intermediate updates from the
+      editor. */
+  void flush_output()
+  {
+    if (_pending_text.length() == 0 && _pending_cursor_move == 0)
+      return;
+    String text = _pending_text.toString();
+    int d = _pending_cursor_move;
+    _pending_text.setLength(0);
+    _pending_cursor_move = 0;
     InputConnection conn = _recv.getCurrentInputConnection();
     if (conn == null)
       return;
-    conn.commitText(text, 1);
-    _autocap.typed(text);
+    _last_flush_time = SystemClock.uptimeMillis();
+    conn.beginBatchEdit();
+    if (text.length() > 0)
+    {
+      conn.commitText(text, 1);
+      if (_sel_start >= 0)
+      {
+        int sel_min = Math.min(_sel_start, _sel_end);
+        if (_text_len >= 0)
+          _text_len += text.length() - (Math.max(_sel_start, _sel_end) - sel_min);
+        int cursor = sel_min + text.length();
+        set_selection(cursor, cursor);
+        expect_selection();
+      }
+    }
+    if (d != 0)
+      move_cursor_now(conn, d);
+    conn.endBatchEdit();
   }
 
   /** See {!InputConnection.performContextMenuAction}. */
   void send_context_menu_action(int id)
   {
+    flush_output();
+    set_selection(-1, -1);
     InputConnection conn = _recv.getCurrentInputConnection();
     if (conn == null)
       return;
@@ -248,27 +456,58 @@ public final class KeyEventHandler
     return conn.getExtractedText(_move_cursor_req, 0);
   }
 
+  /** Set [_text_len] by querying the text after the tracked selection, up to
+      [TEXT_LEN_QUERY_MAX] characters. If the editor doesn't answer, the
+      length is assumed to be large enough for this many more characters. */
+  void query_text_len(InputConnection conn)
+  {
+    int sel_max = Math.max(_sel_start, _sel_end);
+    CharSequence after = conn.getTextAfterCursor(TEXT_LEN_QUERY_MAX, 0);
+    int after_len = (after == null) ? TEXT_LEN_QUERY_MAX : after.length();
+    _text_len = sel_max + after_len;
+    _text_len_exact = after_len < TEXT_LEN_QUERY_MAX;
+  }
+
   /** Move the cursor right or left, if possible without sending key events.
       Unlike arrow keys, the selection is not removed even if shift is not on.
       Falls back to sending arrow keys events if the editor do not support
       moving the cursor or a modifier other than shift is pressed. */
   void move_cursor(int d)
   {
-    InputConnection conn = _recv.getCurrentInputConnection();
-    if (conn == null)
+    if (_recv.getCurrentInputConnection() == null)
       return;
-    ExtractedText et = get_cursor_pos(conn);
+    if (_pending_text.length() > 0)
+      flush_output();
+    _pending_cursor_move += d;
+    schedule_flush();
+  }
+
+  /** Implementation of [move_cursor], called from [flush_output]. */
+  void move_cursor_now(InputConnection conn, int d)
+  {
     int system_mods =
       KeyEvent.META_CTRL_ON | KeyEvent.META_ALT_ON | KeyEvent.META_META_ON;
     // Fallback to sending key events
-    if (_move_cursor_force_fallback || et == null
-        || (_meta_state & system_mods) != 0)
+    if (_move_cursor_force_fallback || (_meta_state & system_mods) != 0)
     {
       move_cursor_fallback(d);
       return;
     }
-    int sel_start = et.selectionStart;
-    int sel_end = et.selectionEnd;
+    // Query the editor only if the selection is not known. Otherwise, move
+    // from the tracked selection even if our changes are not yet reported.
+    if (_sel_start < 0)
+    {
+      ExtractedText et = get_cursor_pos(conn);
+      if (et != null)
+        set_selection(et.selectionStart, et.selectionEnd);
+      if (_sel_start < 0)
+      {
+        move_cursor_fallback(d);
+        return;
+      }
+    }
+    int sel_start = _sel_start;
+    int sel_end = _sel_end;
     // Continue expanding the selection even if shift is not pressed
     if (sel_end != sel_start)
     {
@@ -283,7 +522,25 @@ public final class KeyEventHandler
       if ((_meta_state & KeyEvent.META_SHIFT_ON) == 0)
         sel_start = sel_end;
     }
-    if (!conn.setSelection(sel_start, sel_end))
+    sel_start = Math.max(0, sel_start);
+    sel_end = Math.max(0, sel_end);
+    // The length of the text is only needed when moving past what is known
+    // of it.
+    if (!_text_len_exact && Math.max(sel_start, sel_end) > _text_len)
+      query_text_len(conn);
+    if (_text_len_exact)
+    {
+      sel_start = Math.min(sel_start, _text_len);
+      sel_end = Math.min(sel_end, _text_len);
+    }
+    if (sel_start == _sel_start && sel_end == _sel_end)
+      return; // At the beginning or the end of the text.
+    if (conn.setSelection(sel_start, sel_end))
+    {
+      set_selection(sel_start, sel_end);
+      expect_selection();
+    }
+    else
       move_cursor_fallback(d);
   }
 
@@ -303,6 +560,12 @@ public final class KeyEventHandler
     }
   }
 
+  public static interface TextTarget
+  {
+    public void typed(String text);
+    public void delete_backward();
+  }
+
   public static interface IReceiver
   {
     public void handle_event_key(KeyValue.Event ev);
@@ -2,7 +2,8 @@ package juloo.keyboard2;
 
 import android.view.KeyCharacterMap;
 import android.view.KeyEvent;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 public final class KeyModifier
 {
@@ -12,6 +13,9 @@ public final class KeyModifier
   public static void set_modmap(KeyboardData.Modmap mm)
   {
     _modmap = mm;
+    // Results depend on the modmap. This is also called when the layout
+    // changes.
+    _cache.clear();
   }
 
   /** Modify a key according to modifiers. */
@@ -19,6 +23,19 @@ public final class KeyModifier
   {
     if (k == null)
       return null;
+    _cache_probe.kv = k;
+    _cache_probe.mods = mods;
+    KeyValue r = _cache.get(_cache_probe);
+    if (r == null && !_cache.containsKey(_cache_probe))
+    {
+      r = modify_uncached(k, mods);
+      _cache.put(new Cache_key(k, mods), r);
+    }
+    return r;
+  }
+
+  private static KeyValue modify_uncached(KeyValue k, Pointers.Modifiers mods)
+  {
     int n_mods = mods.size();
     KeyValue r = k;
     for (int i = 0; i < n_mods; i++)
@@ -85,6 +102,93 @@ public final class KeyModifier
     }
   }
 
+  /** Results of [modify] for the current layout, [null] results included.
+      Modifiers that have no effect are not part of the key. The least
+      recently used entries are evicted first. */
+  static final int CACHE_SIZE = 1024;
+  private static final LinkedHashMap<Cache_key, KeyValue> _cache =
+    new LinkedHashMap<Cache_key, KeyValue>(CACHE_SIZE, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Cache_key, KeyValue> _e)
+      {
+        return size() > CACHE_SIZE;
+      }
+    };
+  /** Reused to lookup [_cache] without allocating. */
+  private static final Cache_key _cache_probe = new Cache_key(null, null);
+
+  private static final class Cache_key
+  {
+    KeyValue kv;
+    Pointers.Modifiers mods;
+
+    public Cache_key(KeyValue k, Pointers.Modifiers m)
+    {
+      kv = k;
+      mods = m;
+    }
+
+    @Override
+    public int hashCode()
+    {
+      int h = kv.hashCode();
+      int n_mods = mods.size();
+      for (int i = 0; i < n_mods; i++)
+      {
+        KeyValue m = mods.get(i);
+        if (is_active_modifier(m))
+          h = h * 31 + m.hashCode();
+      }
+      return h;
+    }
+
+    @Override
+    public boolean equals(Object obj)
+    {
+      Cache_key snd = (Cache_key)obj;
+      return kv.sameKey(snd.kv) && same_active_modifiers(mods, snd.mods);
+    }
+  }
+
+  /** Whether [mod] has an effect in [modify]. Pressed keys that are not
+      modifiers are also part of [Pointers.Modifiers]. */
+  public static boolean is_active_modifier(KeyValue mod)
+  {
+    switch (mod.getKind())
+    {
+      case Modifier:
+      case Compose_pending:
+      case Hangul_initial:
+      case Hangul_medial:
+        return true;
+      default:
+        return false;
+    }
+  }
+
+  /** Whether [modify] gives the same results with [a] and [b]. */
+  public static boolean same_active_modifiers(Pointers.Modifiers a,
+      Pointers.Modifiers b)
+  {
+    int i = 0;
+    int j = 0;
+    int a_size = a.size();
+    int b_size = b.size();
+    while (true)
+    {
+      while (i < a_size && !is_active_modifier(a.get(i)))
+        i++;
+      while (j < b_size && !is_active_modifier(b.get(j)))
+        j++;
+      if (i >= a_size || j >= b_size)
+        return i >= a_size && j >= b_size;
+      if (!a.get(i).sameKey(b.get(j)))
+        return false;
+      i++;
+      j++;
+    }
+  }
+
   /** Modify a key after a long press. */
   public static KeyValue modify_long_press(KeyValue k)
   {
@@ -12,6 +12,7 @@ public final class KeyValue implements Comparable<KeyValue>
     SWITCH_NUMERIC,
     SWITCH_EMOJI,
     SWITCH_BACK_EMOJI,
+    SWITCH_EMOJI_SEARCH,
     SWITCH_CLIPBOARD,
     SWITCH_BACK_CLIPBOARD,
     CHANGE_METHOD_PICKER,
@@ -413,7 +414,31 @@ public final class KeyValue implements Comparable<KeyValue>
     return new KeyValue("", Kind.Modifier, mod.ordinal(), 0);
   }
 
+  /** Keys already returned by [getKeyByName]. [KeyValue] objects are
+      immutable and can be shared. Access must be synchronized. */
+  private static final HashMap<String, KeyValue> _keys_by_name =
+    new HashMap<String, KeyValue>();
+  /** Names that are not special keys make string keys. Stop remembering them
+      after this many entries to not grow indefinitely with custom layouts. */
+  static final int KEYS_BY_NAME_MAX = 2048;
+
+  /** Returns a shared instance, the same for every calls with the same
+      [name]. */
   public static KeyValue getKeyByName(String name)
+  {
+    synchronized (_keys_by_name)
+    {
+      KeyValue kv = _keys_by_name.get(name);
+      if (kv != null)
+        return kv;
+      kv = makeKeyByName(name);
+      if (_keys_by_name.size() < KEYS_BY_NAME_MAX)
+        _keys_by_name.put(name, kv);
+      return kv;
+    }
+  }
+
+  private static KeyValue makeKeyByName(String name)
   {
     switch (name)
     {
@@ -462,6 +487,7 @@ public final class KeyValue implements Comparable<KeyValue>
       case "switch_numeric": return eventKey("123+", Event.SWITCH_NUMERIC, FLAG_SMALLER_FONT);
       case "switch_emoji": return eventKey(0xE001, Event.SWITCH_EMOJI, FLAG_SMALLER_FONT);
       case "switch_back_emoji": return eventKey("ABC", Event.SWITCH_BACK_EMOJI, 0);
+      case "switch_emoji_search": return eventKey("\uD83D\uDD0D", Event.SWITCH_EMOJI_SEARCH, 0);
       case "switch_clipboard": return eventKey(0xE017, Event.SWITCH_CLIPBOARD, 0);
       case "switch_back_clipboard": return eventKey("ABC", Event.SWITCH_BACK_CLIPBOARD, 0);
       case "switch_forward": return eventKey(0xE013, Event.SWITCH_FORWARD, FLAG_SMALLER_FONT);
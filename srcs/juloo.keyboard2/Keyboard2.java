@@ -1,28 +1,27 @@
 package juloo.keyboard2;
 
-import android.annotation.TargetApi;
 import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
+import android.content.res.Resources;
 import android.inputmethodservice.InputMethodService;
 import android.os.Build.VERSION;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
+import android.os.MessageQueue;
 import android.text.InputType;
 import android.util.Log;
 import android.util.LogPrinter;
 import android.view.*;
 import android.view.inputmethod.EditorInfo;
 import android.view.inputmethod.InputConnection;
-import android.view.inputmethod.InputMethodInfo;
 import android.view.inputmethod.InputMethodManager;
 import android.view.inputmethod.InputMethodSubtype;
 import android.widget.FrameLayout;
 import android.widget.LinearLayout;
 import java.util.AbstractMap.SimpleEntry;
-import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.HashSet;
-import java.util.List;
 import java.util.Set;
 import juloo.keyboard2.prefs.LayoutsPreference;
 
@@ -36,10 +35,12 @@ public class Keyboard2 extends InputMethodService
   /** Layout associated with the currently selected locale. Not 'null'. */
   private KeyboardData _localeTextLayout;
   private ViewGroup _emojiPane = null;
+  private EmojiSearchPane _emoji_search_pane = null;
   private ViewGroup _clipboard_pane = null;
   public int actionId; // Action performed by the Action key.
 
   private Config _config;
+  private Handler _handler;
 
   /** Layout currently visible before it has been modified. */
   KeyboardData current_layout_unmodified()
@@ -109,76 +110,148 @@ public class Keyboard2 extends InputMethodService
     SharedPreferences prefs = DirectBootAwarePreferences.get_shared_preferences(this);
     _keyeventhandler = new KeyEventHandler(getMainLooper(), this.new Receiver());
     Config.initGlobalConfig(prefs, getResources(), _keyeventhandler);
+    ComposeKey.set_assets(getAssets());
     prefs.registerOnSharedPreferenceChangeListener(this);
     _config = Config.globalConfig();
     _keyboardView = (Keyboard2View)inflate_view(R.layout.keyboard);
     _keyboardView.reset();
     Logs.set_debug_logs(getResources().getBoolean(R.bool.debug_logs));
     ClipboardHistoryService.on_startup(this, _keyeventhandler);
+    _handler = new Handler(getMainLooper());
+    SubtypeSnapshot.register(this, _handler);
+    warmup_layouts();
+    Utils.background_handler().post(new Runnable()
+        {
+          public void run()
+          {
+            EmojiGridView.preload(Keyboard2.this);
+          }
+        });
   }
 
-  private List<InputMethodSubtype> getEnabledSubtypes(InputMethodManager imm)
+  @Override
+  public void onDestroy()
   {
-    String pkg = getPackageName();
-    for (InputMethodInfo imi : imm.getEnabledInputMethodList())
-      if (imi.getPackageName().equals(pkg))
-        return imm.getEnabledInputMethodSubtypeList(imi, true);
-    return Arrays.asList();
+    SubtypeSnapshot.unregister(this);
+    super.onDestroy();
   }
 
-  @TargetApi(12)
-  private ExtraKeys extra_keys_of_subtype(InputMethodSubtype subtype)
+  /** Layouts that are not in [_config.layouts] but can be switched to. */
+  static final int[] SPECIAL_LAYOUTS = {
+    R.xml.numeric, R.xml.pin, R.xml.greekmath, R.xml.latn_qwerty_us };
+
+  /** Parse the special layouts in the background, they are then found in
+      the cache of [KeyboardData.load] and switching to them for the first
+      time doesn't stall. */
+  private void warmup_layouts()
   {
-    String extra_keys = subtype.getExtraValueOf("extra_keys");
-    String script = subtype.getExtraValueOf("script");
-    if (extra_keys != null)
-      return ExtraKeys.parse(script, extra_keys);
-    return ExtraKeys.EMPTY;
-  }
+    final Resources res = getResources();
+    Utils.background_handler().post(new Runnable()
+        {
+          public void run()
+          {
+            for (int id : SPECIAL_LAYOUTS)
+              KeyboardData.load(res, id);
+          }
+        });
+  }
+
+  /** Index in [_config.layouts] of the next layout to be modified by
+      [_warmup_modified_layouts]. */
+  private int _warmup_next = 0;
+  private int _warmup_remaining = 0;
+  /** Set when the config, the list of layouts or the subtype changed. The
+      layouts are then modified again at the next input start. */
+  private boolean _warmup_needed = true;
+  private boolean _warmup_scheduled = false;
+
+  /** Compute [_config.modify_layout] for the other layouts, starting with the
+      one that [SWITCH_FORWARD] selects, one layout each time the UI thread is
+      idle. [modify_layout] reads the config, which is only modified on the
+      UI thread. The result depends on the editor's action key, this must run
+      after the input started. */
+  private final MessageQueue.IdleHandler _warmup_modified_layouts =
+    new MessageQueue.IdleHandler()
+    {
+      public boolean queueIdle()
+      {
+        int n = _config.layouts.size();
+        if (_warmup_remaining <= 0 || n == 0)
+        {
+          _warmup_scheduled = false;
+          return false;
+        }
+        _warmup_remaining--;
+        KeyboardData layout = _config.layouts.get(_warmup_next % n);
+        _warmup_next++;
+        _config.modify_layout((layout == null) ? _localeTextLayout : layout);
+        return true;
+      }
+    };
+
+  /** Inflate the emoji pane and then the clipboard pane when the UI thread is
+      idle, so that opening them for the first time is fast. Views must be
+      inflated on the UI thread, the emoji data is loaded in the background by
+      [EmojiGridView.preload]. */
+  private final MessageQueue.IdleHandler _inflate_panes =
+    new MessageQueue.IdleHandler()
+    {
+      public boolean queueIdle()
+      {
+        if (_emojiPane == null)
+        {
+          _emojiPane = (ViewGroup)inflate_view(R.layout.emoji_pane);
+          return true; // The other pane is inflated at the next idle time.
+        }
+        if (_clipboard_pane == null)
+          _clipboard_pane = (ViewGroup)inflate_view(R.layout.clipboard_pane);
+        _inflate_panes_scheduled = false;
+        return false;
+      }
+    };
+  private boolean _inflate_panes_scheduled = false;
 
-  private void refreshAccentsOption(InputMethodManager imm, List<InputMethodSubtype> enabled_subtypes)
+  private void schedule_inflate_panes()
   {
-    List<ExtraKeys> extra_keys = new ArrayList<ExtraKeys>();
-    for (InputMethodSubtype s : enabled_subtypes)
-      extra_keys.add(extra_keys_of_subtype(s));
-    _config.extra_keys_subtype = ExtraKeys.merge(extra_keys);
+    if (_inflate_panes_scheduled
+        || (_emojiPane != null && _clipboard_pane != null))
+      return;
+    _inflate_panes_scheduled = true;
+    Looper.myQueue().addIdleHandler(_inflate_panes);
   }
 
-  InputMethodManager get_imm()
+  /** Does nothing unless [_warmup_needed]. The cache of [modify_layout] is
+      keyed on the action key, which differs between editors, warming it up
+      at every input start would mostly compute layouts that are not used. */
+  private void schedule_warmup_modified_layouts()
   {
-    return (InputMethodManager)getSystemService(INPUT_METHOD_SERVICE);
+    if (!_warmup_needed)
+      return;
+    _warmup_needed = false;
+    _warmup_next = _config.get_current_layout() + 1;
+    // Don't evict the current layout from the cache.
+    _warmup_remaining = Math.min(_config.layouts.size() - 1,
+        Config.MODIFIED_LAYOUTS_CACHE_SIZE / 2);
+    if (_warmup_scheduled)
+      return;
+    _warmup_scheduled = true;
+    Looper.myQueue().addIdleHandler(_warmup_modified_layouts);
   }
 
-  @TargetApi(12)
-  private String defaultLayoutForSubtypes(InputMethodManager imm, List<InputMethodSubtype> enabled_subtypes)
+  InputMethodManager get_imm()
   {
-    // Android might return a random subtype, for example, the first in the
-    // list alphabetically.
-    InputMethodSubtype current_subtype = imm.getCurrentInputMethodSubtype();
-    for (InputMethodSubtype s : enabled_subtypes)
-      if (s.getLanguageTag().equals(current_subtype.getLanguageTag()))
-        return s.getExtraValueOf("default_layout");
-    return null;
+    return (InputMethodManager)getSystemService(INPUT_METHOD_SERVICE);
   }
 
   private void refreshSubtypeImm()
   {
-    InputMethodManager imm = get_imm();
+    SubtypeSnapshot subtypes = SubtypeSnapshot.get(this, get_imm());
     _config.shouldOfferVoiceTyping = true;
+    _config.extra_keys_subtype = subtypes.extra_keys;
     KeyboardData default_layout = null;
-    _config.extra_keys_subtype = null;
-    if (VERSION.SDK_INT >= 12)
-    {
-      List<InputMethodSubtype> enabled_subtypes = getEnabledSubtypes(imm);
-      InputMethodSubtype subtype = imm.getCurrentInputMethodSubtype();
-      if (subtype != null)
-      {
-        String s = defaultLayoutForSubtypes(imm, enabled_subtypes);
-        if (s != null)
-          default_layout = LayoutsPreference.layout_of_string(getResources(), s);
-        refreshAccentsOption(imm, enabled_subtypes);
-      }
-    }
+    if (subtypes.default_layout != null)
+      default_layout = LayoutsPreference.layout_of_string(getResources(),
+          subtypes.default_layout);
     if (default_layout == null)
       default_layout = loadLayout(R.xml.latn_qwerty_us);
     _localeTextLayout = default_layout;
@@ -228,18 +301,23 @@ public class Keyboard2 extends InputMethodService
   {
     int prev_theme = _config.theme;
     _config.refresh(getResources());
+    _warmup_needed = true;
     refreshSubtypeImm();
     // Refreshing the theme config requires re-creating the views
     if (prev_theme != _config.theme)
-    {
-      _keyboardView = (Keyboard2View)inflate_view(R.layout.keyboard);
-      _emojiPane = null;
-      _clipboard_pane = null;
-      setInputView(_keyboardView);
-    }
+      recreate_views();
     _keyboardView.reset();
   }
 
+  private void recreate_views()
+  {
+    _keyboardView = (Keyboard2View)inflate_view(R.layout.keyboard);
+    _emojiPane = null;
+    _emoji_search_pane = null;
+    _clipboard_pane = null;
+    setInputView(_keyboardView);
+  }
+
   private KeyboardData refresh_special_layout(EditorInfo info)
   {
     switch (info.inputType & InputType.TYPE_MASK_CLASS)
@@ -260,18 +338,28 @@ public class Keyboard2 extends InputMethodService
   @Override
   public void onStartInputView(EditorInfo info, boolean restarting)
   {
-    refresh_config();
+    // Preferences are refreshed as they change, the config only depends on
+    // the resources, which change for example with the orientation.
+    if (_config.resources_changed(getResources()))
+      refresh_config();
+    else
+      refreshSubtypeImm();
     refresh_action_label(info);
     _currentSpecialLayout = refresh_special_layout(info);
     _keyboardView.setKeyboard(current_layout());
     _keyeventhandler.started(info);
     setInputView(_keyboardView);
+    schedule_warmup_modified_layouts();
+    schedule_inflate_panes();
     Logs.debug_startup_input_view(info, _config);
   }
 
   @Override
   public void setInputView(View v)
   {
+    // Typed text goes back to the editor when the search is hidden.
+    if (v != _emoji_search_pane)
+      _keyeventhandler.set_text_target(null);
     ViewParent parent = v.getParent();
     if (parent != null && parent instanceof ViewGroup)
       ((ViewGroup)parent).removeView(v);
@@ -336,6 +424,8 @@ public class Keyboard2 extends InputMethodService
   @Override
   public void onCurrentInputMethodSubtypeChanged(InputMethodSubtype subtype)
   {
+    SubtypeSnapshot.invalidate();
+    _warmup_needed = true;
     refreshSubtypeImm();
     _keyboardView.setKeyboard(current_layout());
   }
@@ -344,7 +434,16 @@ public class Keyboard2 extends InputMethodService
   public void onUpdateSelection(int oldSelStart, int oldSelEnd, int newSelStart, int newSelEnd, int candidatesStart, int candidatesEnd)
   {
     super.onUpdateSelection(oldSelStart, oldSelEnd, newSelStart, newSelEnd, candidatesStart, candidatesEnd);
-    _keyeventhandler.selection_updated(oldSelStart, newSelStart);
+    _keyeventhandler.selection_updated(oldSelStart, newSelStart, newSelEnd);
+  }
+
+  @Override
+  public void onFinishInput()
+  {
+    // Send what's pending while the input connection is still the one of the
+    // editor.
+    _keyeventhandler.finished();
+    super.onFinishInput();
   }
 
   @Override
@@ -355,10 +454,16 @@ public class Keyboard2 extends InputMethodService
   }
 
   @Override
-  public void onSharedPreferenceChanged(SharedPreferences _prefs, String _key)
+  public void onSharedPreferenceChanged(SharedPreferences _prefs, String key)
   {
-    refresh_config();
-    _keyboardView.setKeyboard(current_layout());
+    int changed = _config.refresh_pref(getResources(), key);
+    if ((changed & Config.CHANGED_LAYOUTS) != 0)
+      _warmup_needed = true;
+    if ((changed & Config.CHANGED_THEME) != 0)
+      recreate_views();
+    // [setKeyboard] also resets the view.
+    if (changed != Config.CHANGED_NOTHING)
+      _keyboardView.setKeyboard(current_layout());
   }
 
   @Override
@@ -396,6 +501,14 @@ public class Keyboard2 extends InputMethodService
           setInputView(_emojiPane);
           break;
 
+        case SWITCH_EMOJI_SEARCH:
+          if (_emoji_search_pane == null)
+            _emoji_search_pane =
+              (EmojiSearchPane)inflate_view(R.layout.emoji_search_pane);
+          _emoji_search_pane.start(current_layout(), _keyeventhandler);
+          setInputView(_emoji_search_pane);
+          break;
+
         case SWITCH_CLIPBOARD:
           if (_clipboard_pane == null)
             _clipboard_pane = (ViewGroup)inflate_view(R.layout.clipboard_pane);
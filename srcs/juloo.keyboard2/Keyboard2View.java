@@ -2,7 +2,9 @@ package juloo.keyboard2;
 
 import android.content.Context;
 import android.content.ContextWrapper;
+import android.graphics.Bitmap;
 import android.graphics.Canvas;
+import android.graphics.Color;
 import android.graphics.Insets;
 import android.graphics.Paint;
 import android.graphics.Rect;
@@ -17,6 +19,7 @@ import android.view.Window;
 import android.view.WindowInsets;
 import android.view.WindowManager;
 import android.view.WindowMetrics;
+import java.util.ArrayList;
 import java.util.Arrays;
 
 public class Keyboard2View extends View
@@ -46,6 +49,41 @@ public class Keyboard2View extends View
   private Theme _theme;
 
   private static RectF _tmpRect = new RectF();
+  private static Rect _tmpClipRect = new Rect();
+
+  /** Computed in [onMeasure]. Access through [geometry()]. */
+  private KeyboardGeometry _geometry = null;
+  /** Keys that were pressed and modifiers that were active when
+      [invalidate_changed_keys] was last called. */
+  private ArrayList<KeyboardData.Key> _keys_down = new ArrayList<KeyboardData.Key>();
+  private ArrayList<KeyboardData.Key> _prev_keys_down = new ArrayList<KeyboardData.Key>();
+  private Pointers.Modifiers _invalidated_mods = Pointers.Modifiers.EMPTY;
+  /** Set while the samples of a move event are processed. Invalidation is
+      done once at the end of the batch. */
+  private boolean _batching_moves = false;
+  private boolean _invalidate_after_batch = false;
+
+  /** Keys pre-rendered into bitmaps, used when drawing on a software canvas.
+      [_atlas_released] contains every keys at rest and [_atlas_pressed] the
+      frame of every keys when pressed. The labels of pressed keys depend on
+      the pointers and are not pre-rendered. See [update_atlas()]. */
+  private Bitmap _atlas_released = null;
+  private Bitmap _atlas_pressed = null;
+  /** Modifiers applied to the labels in [_atlas_released]. [null] if it must
+      be rendered again. */
+  private Pointers.Modifiers _atlas_mods = null;
+  /** Whether [_atlas_pressed] must be rendered again. */
+  private boolean _atlas_pressed_valid = false;
+
+  /** Labels of the keys modified by a set of modifiers, for the current
+      layout. The most recently used first. See [labels_overlay()]. */
+  private final ArrayList<Overlay> _overlays = new ArrayList<Overlay>();
+
+  /** The modmap in [KeyModifier] is global, it is set by the view that is
+      attached to the window. Views inflated ahead of time, like the emoji
+      pane, must not override the modmap of the visible keyboard. */
+  private boolean _attached = false;
+  static final int MAX_OVERLAYS = 8;
 
   enum Vertical
   {
@@ -108,7 +146,8 @@ public class Keyboard2View extends View
     }
     _compose_kv = KeyValue.getKeyByName("compose");
     _compose_key = _keyboard.findKeyWithValue(_compose_kv);
-    KeyModifier.set_modmap(_keyboard.modmap);
+    if (_attached)
+      KeyModifier.set_modmap(_keyboard.modmap);
     reset();
   }
 
@@ -116,6 +155,12 @@ public class Keyboard2View extends View
   {
     _mods = Pointers.Modifiers.EMPTY;
     _pointers.clear();
+    // The layout or the config might have changed.
+    invalidate_atlas();
+    _geometry = null;
+    _overlays.clear();
+    _keys_down.clear();
+    _invalidated_mods = _mods;
     requestLayout();
     invalidate();
   }
@@ -149,7 +194,7 @@ public class Keyboard2View extends View
   {
     updateFlags();
     _config.handler.key_down(k, isSwipe);
-    invalidate();
+    invalidate_changed_keys();
     vibrate();
   }
 
@@ -159,7 +204,7 @@ public class Keyboard2View extends View
     // flags.
     _config.handler.key_up(k, mods);
     updateFlags();
-    invalidate();
+    invalidate_changed_keys();
   }
 
   public void onPointerHold(KeyValue k, Pointers.Modifiers mods)
@@ -171,7 +216,7 @@ public class Keyboard2View extends View
   public void onPointerFlagsChanged(boolean shouldVibrate)
   {
     updateFlags();
-    invalidate();
+    invalidate_changed_keys();
     if (shouldVibrate)
       vibrate();
   }
@@ -182,6 +227,46 @@ public class Keyboard2View extends View
     _config.handler.mods_changed(_mods);
   }
 
+  /** Invalidate the keys that are pressed or were pressed at the previous
+      call. The labels of pressed keys depend on the pointers. The whole view
+      is invalidated if modifiers that change the labels are activated or
+      released. */
+  private void invalidate_changed_keys()
+  {
+    if (_batching_moves)
+    {
+      _invalidate_after_batch = true;
+      return;
+    }
+    ArrayList<KeyboardData.Key> prev = _keys_down;
+    _keys_down = _prev_keys_down;
+    _prev_keys_down = prev;
+    _keys_down.clear();
+    _pointers.getKeysDown(_keys_down);
+    if (!KeyModifier.same_active_modifiers(_invalidated_mods, _mods))
+    {
+      _invalidated_mods = _mods;
+      invalidate();
+      return;
+    }
+    if (!invalidate_keys(_prev_keys_down) || !invalidate_keys(_keys_down))
+      invalidate();
+  }
+
+  /** Returns [false] if the bounds of a key are not known. */
+  private boolean invalidate_keys(ArrayList<KeyboardData.Key> keys)
+  {
+    KeyboardGeometry g = geometry();
+    for (int i = 0; i < keys.size(); i++)
+    {
+      Rect r = g.cell(keys.get(i));
+      if (r == null)
+        return false;
+      invalidate(r);
+    }
+    return true;
+  }
+
   @Override
   public boolean onTouch(View v, MotionEvent event)
   {
@@ -202,8 +287,7 @@ public class Keyboard2View extends View
           _pointers.onTouchDown(tx, ty, event.getPointerId(p), key);
         break;
       case MotionEvent.ACTION_MOVE:
-        for (p = 0; p < event.getPointerCount(); p++)
-          _pointers.onTouchMove(event.getX(p), event.getY(p), event.getPointerId(p));
+        onTouchMoveBatch(event);
         break;
       case MotionEvent.ACTION_CANCEL:
         _pointers.onTouchCancel();
@@ -214,37 +298,50 @@ public class Keyboard2View extends View
     return (true);
   }
 
-  private KeyboardData.Row getRowAtPosition(float ty)
+  /** Move events contain the samples received since the previous event.
+      Process all of them for a better precision of gestures and sliding. */
+  private void onTouchMoveBatch(MotionEvent event)
   {
-    float y = _config.marginTop;
-    if (ty < y)
-      return null;
-    for (KeyboardData.Row row : _keyboard.rows)
+    int n_ptrs = event.getPointerCount();
+    int n_hist = event.getHistorySize();
+    _batching_moves = true;
+    _invalidate_after_batch = false;
+    try
     {
-      y += (row.shift + row.height) * _config.keyHeight;
-      if (ty < y)
-        return row;
+      for (int h = 0; h < n_hist; h++)
+      {
+        long time = event.getHistoricalEventTime(h);
+        for (int p = 0; p < n_ptrs; p++)
+          _pointers.onTouchMove(event.getHistoricalX(p, h),
+              event.getHistoricalY(p, h), event.getPointerId(p), time);
+      }
+      long time = event.getEventTime();
+      for (int p = 0; p < n_ptrs; p++)
+        _pointers.onTouchMove(event.getX(p), event.getY(p),
+            event.getPointerId(p), time);
     }
-    return null;
+    finally
+    {
+      _batching_moves = false;
+    }
+    if (_invalidate_after_batch)
+      invalidate_changed_keys();
   }
 
   private KeyboardData.Key getKeyAtPosition(float tx, float ty)
   {
-    KeyboardData.Row row = getRowAtPosition(ty);
-    float x = _config.horizontal_margin;
-    if (row == null || tx < x)
-      return null;
-    for (KeyboardData.Key key : row.keys)
-    {
-      float xLeft = x + key.shift * _keyWidth;
-      float xRight = xLeft + key.width * _keyWidth;
-      if (tx < xLeft)
-        return null;
-      if (tx < xRight)
-        return key;
-      x = xRight;
-    }
-    return null;
+    return geometry().key_at(tx, ty);
+  }
+
+  /** The geometry is normally computed in [onMeasure] but the keyboard might
+      have changed since. */
+  private KeyboardGeometry geometry()
+  {
+    if (_geometry == null || _geometry.keyboard != _keyboard
+        || _geometry.key_width != _keyWidth)
+      _geometry = new KeyboardGeometry(_keyboard, _config.horizontal_margin,
+          _config.marginTop, _keyWidth, _config.keyHeight);
+    return _geometry;
   }
 
   private void vibrate()
@@ -273,6 +370,9 @@ public class Keyboard2View extends View
     }
     setMeasuredDimension(width, height);
     _keyWidth = (width - (_config.horizontal_margin * 2)) / _keyboard.keysWidth;
+    _geometry = new KeyboardGeometry(_keyboard, _config.horizontal_margin,
+        _config.marginTop, _keyWidth, _config.keyHeight);
+    invalidate_atlas();
   }
 
   @Override
@@ -314,40 +414,236 @@ public class Keyboard2View extends View
     _theme.keyBgPaint.setAlpha(_config.keyOpacity);
     _theme.keyDownBgPaint.setAlpha(_config.keyActivatedOpacity);
     _theme.keyBorderPaint.setAlpha(_config.keyOpacity);
+    // Drawing text and round rects on a software canvas is slow, blit the
+    // pre-rendered keys instead. Hardware accelerated canvases already cache
+    // the glyphs.
+    if (!canvas.isHardwareAccelerated() && update_atlas())
+      drawKeys(canvas, DRAW_FROM_ATLAS);
+    else
+      drawKeys(canvas, DRAW_LIVE);
+  }
+
+  @Override
+  public void onAttachedToWindow()
+  {
+    super.onAttachedToWindow();
+    _attached = true;
+    if (_keyboard != null)
+      KeyModifier.set_modmap(_keyboard.modmap);
+  }
+
+  @Override
+  public void onDetachedFromWindow()
+  {
+    super.onDetachedFromWindow();
+    _attached = false;
+    release_atlas();
+  }
+
+  /** Modes for [drawKeys]. */
+  static final int DRAW_LIVE = 0;
+  /** Every keys at rest, into [_atlas_released]. */
+  static final int DRAW_ATLAS_RELEASED = 1;
+  /** The frame of every keys pressed, into [_atlas_pressed]. */
+  static final int DRAW_ATLAS_PRESSED = 2;
+  /** Blit the keys from the atlas and draw the labels of pressed keys. */
+  static final int DRAW_FROM_ATLAS = 3;
+
+  private void drawKeys(Canvas canvas, int mode)
+  {
     float key_vertical_margin = _config.key_vertical_margin * _config.keyHeight;
     float key_horizontal_margin = _config.key_horizontal_margin * _keyWidth;
-    // Add half of the key margin on the left and on the top as it's then added
-    // on the right and on the bottom of every keys.
-    float y = _config.marginTop + key_vertical_margin / 2;
-    for (KeyboardData.Row row : _keyboard.rows)
+    // Only a few keys need to be drawn after [invalidate_changed_keys].
+    boolean clipped = (mode == DRAW_LIVE || mode == DRAW_FROM_ATLAS);
+    if (clipped)
+      canvas.getClipBounds(_tmpClipRect);
+    KeyboardGeometry g = geometry();
+    KeyValue[][][] labels = labels_overlay();
+    for (int r = 0; r < g.row_top.length; r++)
     {
-      y += row.shift * _config.keyHeight;
-      float x = _config.horizontal_margin + key_horizontal_margin / 2;
+      if (clipped && (g.row_bottom[r] < _tmpClipRect.top
+            || g.row_top[r] > _tmpClipRect.bottom))
+        continue;
+      KeyboardData.Row row = _keyboard.rows.get(r);
+      // The key margin is split on both sides of the cell.
+      float y = g.row_top[r] + key_vertical_margin / 2;
       float keyH = row.height * _config.keyHeight - key_vertical_margin;
-      for (KeyboardData.Key k : row.keys)
+      for (int i = 0; i < g.cells[r].length; i++)
       {
-        x += k.shift * _keyWidth;
+        // Labels might overflow on the margins, consider the whole cell.
+        Rect cell = g.cells[r][i];
+        if (clipped && !Rect.intersects(_tmpClipRect, cell))
+          continue;
+        KeyboardData.Key k = row.keys.get(i);
+        float x = g.key_left[r][i] + key_horizontal_margin / 2;
         float keyW = _keyWidth * k.width - key_horizontal_margin;
+        drawKey(canvas, mode, k, labels[r][i], x, y, keyW, keyH, cell);
+      }
+    }
+  }
+
+  /** [cell] is the area covered by the key, margins included. [labels] are
+      the values of the key modified by [_mods]. */
+  private void drawKey(Canvas canvas, int mode, KeyboardData.Key k,
+      KeyValue[] labels, float x, float y, float keyW, float keyH, Rect cell)
+  {
+    switch (mode)
+    {
+      case DRAW_LIVE:
         boolean isKeyDown = _pointers.isKeyDown(k);
         drawKeyFrame(canvas, x, y, keyW, keyH, isKeyDown);
-        if (k.keys[0] != null)
-          drawLabel(canvas, k.keys[0], keyW / 2f + x, y, keyH, isKeyDown);
-        for (int i = 1; i < 9; i++)
+        drawKeyLabels(canvas, k, labels, x, y, keyW, keyH, isKeyDown);
+        break;
+      case DRAW_ATLAS_RELEASED:
+        drawKeyFrame(canvas, x, y, keyW, keyH, false);
+        drawKeyLabels(canvas, k, labels, x, y, keyW, keyH, false);
+        break;
+      case DRAW_ATLAS_PRESSED:
+        drawKeyFrame(canvas, x, y, keyW, keyH, true);
+        break;
+      case DRAW_FROM_ATLAS:
+        if (_pointers.isKeyDown(k))
         {
-          if (k.keys[i] != null)
-            drawSubLabel(canvas, k.keys[i], x, y, keyW, keyH, i, isKeyDown);
+          canvas.drawBitmap(_atlas_pressed, cell, cell, null);
+          drawKeyLabels(canvas, k, labels, x, y, keyW, keyH, true);
         }
-        drawIndication(canvas, k, x, y, keyW, keyH);
-        x += _keyWidth * k.width;
+        else
+          canvas.drawBitmap(_atlas_released, cell, cell, null);
+        break;
+    }
+  }
+
+  /** Draw the labels and the indication of a key. */
+  private void drawKeyLabels(Canvas canvas, KeyboardData.Key k,
+      KeyValue[] labels, float x, float y, float keyW, float keyH,
+      boolean isKeyDown)
+  {
+    if (labels[0] != null)
+      drawLabel(canvas, labels[0], keyW / 2f + x, y, keyH, isKeyDown);
+    for (int i = 1; i < 9; i++)
+    {
+      if (labels[i] != null)
+        drawSubLabel(canvas, labels[i], x, y, keyW, keyH, i, isKeyDown);
+    }
+    drawIndication(canvas, k, x, y, keyW, keyH);
+  }
+
+  /** Labels of the keys of [_keyboard] modified by [_mods], indexed by row,
+      by key and by key index. Computed the first time a set of modifiers is
+      used, for example when an accent is latched, and kept until the layout
+      changes. */
+  private KeyValue[][][] labels_overlay()
+  {
+    int n = _overlays.size();
+    for (int i = 0; i < n; i++)
+    {
+      Overlay o = _overlays.get(i);
+      if (KeyModifier.same_active_modifiers(o.mods, _mods))
+      {
+        if (i > 0)
+        {
+          _overlays.remove(i);
+          _overlays.add(0, o);
+        }
+        return o.labels;
       }
-      y += row.height * _config.keyHeight;
     }
+    if (n >= MAX_OVERLAYS)
+      _overlays.remove(n - 1);
+    Overlay o = new Overlay(_mods, compute_labels(_keyboard, _mods));
+    _overlays.add(0, o);
+    return o.labels;
   }
 
-  @Override
-  public void onDetachedFromWindow()
+  KeyValue[][][] compute_labels(KeyboardData kw, Pointers.Modifiers mods)
   {
-    super.onDetachedFromWindow();
+    KeyValue[][][] labels = new KeyValue[kw.rows.size()][][];
+    for (int r = 0; r < labels.length; r++)
+    {
+      KeyboardData.Row row = kw.rows.get(r);
+      labels[r] = new KeyValue[row.keys.size()][];
+      for (int i = 0; i < labels[r].length; i++)
+      {
+        KeyValue[] keys = row.keys.get(i).keys;
+        KeyValue[] modified = new KeyValue[keys.length];
+        for (int j = 0; j < keys.length; j++)
+          modified[j] = modifyKey(keys[j], mods);
+        labels[r][i] = modified;
+      }
+    }
+    return labels;
+  }
+
+  static final class Overlay
+  {
+    public final Pointers.Modifiers mods;
+    public final KeyValue[][][] labels;
+
+    public Overlay(Pointers.Modifiers m, KeyValue[][][] l)
+    {
+      mods = m;
+      labels = l;
+    }
+  }
+
+  /** Render the parts of the atlas that are outdated. Must be called after
+      the paints are setup in [onDraw]. Returns [false] if the atlas can't be
+      used. */
+  private boolean update_atlas()
+  {
+    int w = getWidth();
+    int h = getHeight();
+    if (w <= 0 || h <= 0)
+      return false;
+    if (_atlas_released != null
+        && (_atlas_released.getWidth() != w || _atlas_released.getHeight() != h))
+      release_atlas();
+    if (_atlas_released == null)
+    {
+      try
+      {
+        _atlas_released = Bitmap.createBitmap(w, h, Bitmap.Config.ARGB_8888);
+        _atlas_pressed = Bitmap.createBitmap(w, h, Bitmap.Config.ARGB_8888);
+      }
+      catch (OutOfMemoryError e)
+      {
+        release_atlas();
+        return false;
+      }
+    }
+    if (!_atlas_pressed_valid)
+    {
+      _atlas_pressed.eraseColor(Color.TRANSPARENT);
+      drawKeys(new Canvas(_atlas_pressed), DRAW_ATLAS_PRESSED);
+      _atlas_pressed_valid = true;
+    }
+    // Pressed keys that are not modifiers do not change the labels.
+    if (_atlas_mods == null
+        || !KeyModifier.same_active_modifiers(_atlas_mods, _mods))
+    {
+      _atlas_released.eraseColor(Color.TRANSPARENT);
+      drawKeys(new Canvas(_atlas_released), DRAW_ATLAS_RELEASED);
+      _atlas_mods = _mods;
+    }
+    return true;
+  }
+
+  /** The atlas will be rendered again before the next draw. */
+  private void invalidate_atlas()
+  {
+    _atlas_mods = null;
+    _atlas_pressed_valid = false;
+  }
+
+  private void release_atlas()
+  {
+    if (_atlas_released != null)
+      _atlas_released.recycle();
+    if (_atlas_pressed != null)
+      _atlas_pressed.recycle();
+    _atlas_released = null;
+    _atlas_pressed = null;
+    invalidate_atlas();
   }
 
   /** Draw borders and background of the key. */
@@ -412,11 +708,9 @@ public class Keyboard2View extends View
     return sublabel ? _theme.subLabelColor : _theme.labelColor;
   }
 
+  /** [kv] is already modified. */
   private void drawLabel(Canvas canvas, KeyValue kv, float x, float y, float keyH, boolean isKeyDown)
   {
-    kv = modifyKey(kv, _mods);
-    if (kv == null)
-      return;
     float textSize = scaleTextSize(kv, _config.labelTextSize, keyH);
     Paint p = _theme.labelPaint(kv.hasFlagsAny(KeyValue.FLAG_KEY_FONT));
     p.setColor(labelColor(kv, isKeyDown, false));
@@ -430,9 +724,6 @@ public class Keyboard2View extends View
   {
     Paint.Align a = LABEL_POSITION_H[sub_index];
     Vertical v = LABEL_POSITION_V[sub_index];
-    kv = modifyKey(kv, _mods);
-    if (kv == null)
-      return;
     float textSize = scaleTextSize(kv, _config.sublabelTextSize, keyH);
     Paint p = _theme.subLabelPaint(kv.hasFlagsAny(KeyValue.FLAG_KEY_FONT), a);
     p.setColor(labelColor(kv, isKeyDown, true));
@@ -173,7 +173,9 @@ public final class KeyboardData
     return _key_pos;
   }
 
-  private static Map<Integer, KeyboardData> _layoutCache = new HashMap<Integer, KeyboardData>();
+  /** Layouts parsed by [load]. Filled from the UI thread and from the
+      background by [Keyboard2.warmup_layouts], access must be synchronized. */
+  private static final Map<Integer, KeyboardData> _layoutCache = new HashMap<Integer, KeyboardData>();
 
   public static Row load_bottom_row(Resources res) throws Exception
   {
@@ -190,27 +192,61 @@ public final class KeyboardData
     return parse_keyboard(res.getXml(R.xml.numpad));
   }
 
-  /** Load a layout from a resource ID. Returns [null] on error. */
+  /** Load a layout from a resource ID. Returns [null] on error. Layouts from
+      [srcs/layouts] are read from [BinaryLayouts] if possible. Can be called
+      from any thread, the layout is parsed outside of the lock. */
   public static KeyboardData load(Resources res, int id)
   {
-    KeyboardData l = _layoutCache.get(id);
-    if (l == null)
+    synchronized (_layoutCache)
     {
-      try
+      KeyboardData l = _layoutCache.get(id);
+      if (l != null)
+        return l;
+    }
+    KeyboardData l;
+    try
+    {
+      l = load_binary(res, id);
+      if (l == null)
       {
         XmlResourceParser parser = res.getXml(id);
         l = parse_keyboard(parser);
         parser.close();
-        _layoutCache.put(id, l);
-      }
-      catch (Exception e)
-      {
-        e.printStackTrace();
       }
     }
+    catch (Exception e)
+    {
+      e.printStackTrace();
+      return null;
+    }
+    synchronized (_layoutCache)
+    {
+      // Keep the first result if the layout was parsed by two threads at
+      // the same time. Layouts are compared by identity by
+      // [Config.modify_layout].
+      KeyboardData prev = _layoutCache.get(id);
+      if (prev != null)
+        return prev;
+      _layoutCache.put(id, l);
+    }
     return l;
   }
 
+  /** Returns [null] if the layout is not in [BinaryLayouts] or if it's not
+      readable. The XML is then parsed. */
+  static KeyboardData load_binary(Resources res, int id)
+  {
+    try
+    {
+      return BinaryLayouts.load(res, id);
+    }
+    catch (Exception e)
+    {
+      Logs.exn("Failed to load binary layout", e);
+      return null;
+    }
+  }
+
   /** Load a layout from a string. Returns [null] on error. */
   public static KeyboardData load_string(String src)
   {
@@ -271,7 +307,7 @@ public final class KeyboardData
     return new KeyboardData(rows, kw, modmap, script, numpad_script, name, bottom_row, locale_extra_keys);
   }
 
-  private static float compute_max_width(List<Row> rows)
+  static float compute_max_width(List<Row> rows)
   {
     float w = 0.f;
     for (Row r : rows)
@@ -0,0 +1,117 @@
+package juloo.keyboard2;
+
+import android.graphics.Rect;
+import java.util.IdentityHashMap;
+
+/** Position of the keys of a layout on screen, computed when the view is
+    measured. Used for drawing and for hit-testing. Coordinates don't include
+    the key margins. The space left by [Row.shift] selects the row below it
+    while the space left by [Key.shift] doesn't select any key. */
+public final class KeyboardGeometry
+{
+  public final KeyboardData keyboard;
+  public final float key_width;
+  /** Top of each row, after [Row.shift]. */
+  public final float[] row_top;
+  /** Bottom of each row. Sorted. */
+  public final float[] row_bottom;
+  /** Left and right edges of each key, after [Key.shift]. Sorted. Indexed by
+      row then by key. */
+  public final float[][] key_left;
+  public final float[][] key_right;
+  /** Area covered by each key, rounded outward. Same indexing as
+      [key_left]. */
+  public final Rect[][] cells;
+
+  final float _top;
+  final float _left;
+  final IdentityHashMap<KeyboardData.Key, Rect> _cells_by_key;
+
+  public KeyboardGeometry(KeyboardData kw, float left, float top,
+      float key_width_, float key_height)
+  {
+    keyboard = kw;
+    key_width = key_width_;
+    _top = top;
+    _left = left;
+    _cells_by_key = new IdentityHashMap<KeyboardData.Key, Rect>();
+    int nrows = kw.rows.size();
+    row_top = new float[nrows];
+    row_bottom = new float[nrows];
+    key_left = new float[nrows][];
+    key_right = new float[nrows][];
+    cells = new Rect[nrows][];
+    // Accumulate in the same order as [Keyboard2View] used to.
+    float y = top;
+    for (int r = 0; r < nrows; r++)
+    {
+      KeyboardData.Row row = kw.rows.get(r);
+      y += row.shift * key_height;
+      row_top[r] = y;
+      y += row.height * key_height;
+      row_bottom[r] = y;
+      int nkeys = row.keys.size();
+      float[] lefts = new float[nkeys];
+      float[] rights = new float[nkeys];
+      Rect[] row_cells = new Rect[nkeys];
+      float x = left;
+      for (int i = 0; i < nkeys; i++)
+      {
+        KeyboardData.Key k = row.keys.get(i);
+        x += k.shift * key_width;
+        lefts[i] = x;
+        x += k.width * key_width;
+        rights[i] = x;
+        Rect cell = new Rect((int)lefts[i], (int)row_top[r],
+            (int)Math.ceil(x), (int)Math.ceil(row_bottom[r]));
+        row_cells[i] = cell;
+        _cells_by_key.put(k, cell);
+      }
+      key_left[r] = lefts;
+      key_right[r] = rights;
+      cells[r] = row_cells;
+    }
+  }
+
+  /** Index of the row at vertical position [y] or [-1]. */
+  public int row_at(float y)
+  {
+    if (y < _top)
+      return -1;
+    return first_greater(row_bottom, y);
+  }
+
+  public KeyboardData.Key key_at(float x, float y)
+  {
+    int r = row_at(y);
+    if (r < 0 || x < _left)
+      return null;
+    int i = first_greater(key_right[r], x);
+    if (i < 0 || x < key_left[r][i])
+      return null;
+    return keyboard.rows.get(r).keys.get(i);
+  }
+
+  /** Returns [null] if the key is not part of [keyboard]. */
+  public Rect cell(KeyboardData.Key k)
+  {
+    return _cells_by_key.get(k);
+  }
+
+  /** Index of the first element strictly greater than [v] or [-1]. [edges]
+      must be sorted. */
+  static int first_greater(float[] edges, float v)
+  {
+    int lo = 0;
+    int hi = edges.length;
+    while (lo < hi)
+    {
+      int mid = (lo + hi) >>> 1;
+      if (edges[mid] > v)
+        hi = mid;
+      else
+        lo = mid + 1;
+    }
+    return (lo < edges.length) ? lo : -1;
+  }
+}
@@ -4,7 +4,9 @@ import android.os.Handler;
 import android.os.Message;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.NoSuchElementException;
 
 /**
@@ -24,8 +26,19 @@ public final class Pointers implements Handler.Callback
   /** Can't be locked, even when long pressing. */
   public static final int FLAG_P_CANT_LOCK = (1 << 7);
 
+  static final int MAX_POINTER_ID = 32;
+
   private Handler _longpress_handler;
   private ArrayList<Pointer> _ptrs = new ArrayList<Pointer>();
+  /** Pointers down, indexed by pointer id. Entries are not cleared and must
+      be checked against [Pointer.pointerId]. Larger ids are looked up in
+      [_ptrs]. */
+  private Pointer[] _ptrs_by_id = new Pointer[MAX_POINTER_ID];
+  /** Removed pointers, reused by [newPointer] to avoid allocating while
+      typing. */
+  private ArrayList<Pointer> _free_ptrs = new ArrayList<Pointer>();
+  /** Buffer for [getModifiers]. */
+  private KeyValue[] _mods_buf = new KeyValue[8];
   private IPointerEventHandler _handler;
   private Config _config;
 
@@ -46,7 +59,9 @@ public final class Pointers implements Handler.Callback
   private Modifiers getModifiers(boolean skip_latched)
   {
     int n_ptrs = _ptrs.size();
-    KeyValue[] mods = new KeyValue[n_ptrs];
+    if (_mods_buf.length < n_ptrs)
+      _mods_buf = new KeyValue[n_ptrs * 2];
+    KeyValue[] mods = _mods_buf;
     int n_mods = 0;
     for (int i = 0; i < n_ptrs; i++)
     {
@@ -56,37 +71,51 @@ public final class Pointers implements Handler.Callback
             && (p.flags & FLAG_P_LOCKED) == 0))
         mods[n_mods++] = p.value;
     }
-    return Modifiers.ofArray(mods, n_mods);
+    return Modifiers.intern(mods, n_mods);
   }
 
   public void clear()
   {
-    for (Pointer p : _ptrs)
+    for (int i = 0; i < _ptrs.size(); i++)
+    {
+      Pointer p = _ptrs.get(i);
       stopLongPress(p);
+      freePointer(p);
+    }
     _ptrs.clear();
   }
 
   public boolean isKeyDown(KeyboardData.Key k)
   {
-    for (Pointer p : _ptrs)
-      if (p.key == k)
+    for (int i = 0; i < _ptrs.size(); i++)
+      if (_ptrs.get(i).key == k)
         return true;
     return false;
   }
 
+  /** Add the keys that are pressed, latched or locked to [dst]. */
+  public void getKeysDown(List<KeyboardData.Key> dst)
+  {
+    for (int i = 0; i < _ptrs.size(); i++)
+      dst.add(_ptrs.get(i).key);
+  }
+
   /** See [FLAG_P_*] flags. Returns [-1] if the key is not pressed. */
   public int getKeyFlags(KeyValue kv)
   {
-    for (Pointer p : _ptrs)
+    for (int i = 0; i < _ptrs.size(); i++)
+    {
+      Pointer p = _ptrs.get(i);
       if (p.value != null && p.value.equals(kv))
         return p.flags;
+    }
     return -1;
   }
 
   /** The key must not be already latched . */
   void add_fake_pointer(KeyboardData.Key key, KeyValue kv, boolean locked)
   {
-    Pointer ptr = new Pointer(-1, key, kv, 0.f, 0.f, Modifiers.EMPTY);
+    Pointer ptr = newPointer(-1, key, kv, 0.f, 0.f, Modifiers.EMPTY);
     ptr.flags = FLAG_P_FAKE | FLAG_P_LATCHED;
     if (locked)
       ptr.flags |= FLAG_P_LOCKED;
@@ -149,6 +178,7 @@ public final class Pointers implements Handler.Callback
       // A gesture was in progress
       ptr.gesture.pointer_up();
     }
+    Modifiers ptr_mods = ptr.modifiers;
     Pointer latched = getLatched(ptr);
     if (latched != null) // Already latched
     {
@@ -158,7 +188,7 @@ public final class Pointers implements Handler.Callback
       else // Otherwise, unlatch
       {
         removePtr(latched);
-        _handler.onPointerUp(ptr_value, ptr.modifiers);
+        _handler.onPointerUp(ptr_value, ptr_mods);
       }
     }
     else if ((ptr.flags & FLAG_P_LATCHABLE) != 0)
@@ -174,7 +204,7 @@ public final class Pointers implements Handler.Callback
     {
       clearLatched();
       removePtr(ptr);
-      _handler.onPointerUp(ptr_value, ptr.modifiers);
+      _handler.onPointerUp(ptr_value, ptr_mods);
     }
   }
 
@@ -187,10 +217,13 @@ public final class Pointers implements Handler.Callback
   /* Whether an other pointer is down on a non-special key. */
   private boolean isOtherPointerDown()
   {
-    for (Pointer p : _ptrs)
+    for (int i = 0; i < _ptrs.size(); i++)
+    {
+      Pointer p = _ptrs.get(i);
       if (!p.hasFlagsAny(FLAG_P_LATCHED) &&
           (p.value == null || !p.value.hasFlagsAny(KeyValue.FLAG_SPECIAL)))
         return true;
+    }
     return false;
   }
 
@@ -204,8 +237,10 @@ public final class Pointers implements Handler.Callback
     // The other key already "own" the latched modifiers and will clear them.
     Modifiers mods = getModifiers(isOtherPointerDown());
     KeyValue value = _handler.modifyKey(key.keys[0], mods);
-    Pointer ptr = new Pointer(pointerId, key, value, x, y, mods);
+    Pointer ptr = newPointer(pointerId, key, value, x, y, mods);
     _ptrs.add(ptr);
+    if (pointerId >= 0 && pointerId < MAX_POINTER_ID)
+      _ptrs_by_id[pointerId] = ptr;
     startLongPress(ptr);
     _handler.onPointerDown(value, false);
   }
@@ -223,6 +258,66 @@ public final class Pointers implements Handler.Callback
     return k.keys[DIRECTION_TO_INDEX[direction]];
   }
 
+  /** Tangent of [pi/8], the slope of the boundary between the first two
+      directions after the horizontal axis. */
+  static final float TAN_PI_8 = 0.41421357f;
+
+  /** Direction of the vector [dx, dy] as used by [getKeyAtDirection]. Same
+      result as [direction_of_vector_atan2] but compares the slope of the
+      vector with the boundaries of the sections instead of computing its
+      angle. */
+  static int direction_of_vector(float dx, float dy)
+  {
+    float ax = Math.abs(dx);
+    float ay = Math.abs(dy);
+    // Like [atan2], the sign of a zero decides the side of an axis.
+    boolean left = Float.floatToRawIntBits(dx) < 0;
+    boolean down = Float.floatToRawIntBits(dy) < 0;
+    // [floor(atan2(dy, dx) * 8 / pi)], from [-8] to [8]. Within a quadrant,
+    // the angle [t] from the horizontal axis is floored if the angle
+    // increases with [t] and ceiled otherwise.
+    int a;
+    if (left == down)
+    {
+      // [floor(t * 8 / pi)], the number of boundaries at or below [t].
+      int f;
+      if (ay == 0.f)
+        f = 0;
+      else if (ay < ax)
+        f = (ay < ax * TAN_PI_8) ? 0 : 1;
+      else if (ax == 0.f)
+        f = 4;
+      else
+        f = (ax > ay * TAN_PI_8) ? 2 : 3;
+      a = left ? f - 8 : f;
+    }
+    else
+    {
+      // [ceil(t * 8 / pi)], the number of boundaries strictly below [t].
+      int c;
+      if (ay == 0.f)
+        c = 0;
+      else if (ay <= ax)
+        c = (ay <= ax * TAN_PI_8) ? 1 : 2;
+      else if (ax == 0.f)
+        c = 4;
+      else
+        c = (ax >= ay * TAN_PI_8) ? 3 : 4;
+      a = left ? 8 - c : -c;
+    }
+    return (a + 20) % 16;
+  }
+
+  static int direction_of_vector_atan2(float dx, float dy)
+  {
+    // See [getKeyAtDirection()] for the meaning. The starting point on the
+    // circle is the top direction.
+    double a = Math.atan2(dy, dx) + Math.PI;
+    // a is between 0 and 2pi, 0 is pointing to the left
+    // add 12 to align 0 to the top
+    return ((int)(a * 8 / Math.PI) + 12) % 16;
+  }
+
   /**
    * Get the key nearest to [direction] that is not key0. Take care
    * of applying [_handler.modifyKey] to the selected key in the same
@@ -246,14 +341,16 @@ public final class Pointers implements Handler.Callback
     return null;
   }
 
-  public void onTouchMove(float x, float y, int pointerId)
+  /** [time_ms] is the time of the sample, in the [SystemClock.uptimeMillis()]
+      time base. Might be called for several samples in a row. */
+  public void onTouchMove(float x, float y, int pointerId, long time_ms)
   {
     Pointer ptr = getPtr(pointerId);
     if (ptr == null)
       return;
     if (ptr.hasFlagsAny(FLAG_P_SLIDING))
     {
-      ptr.sliding.onTouchMove(ptr, x);
+      ptr.sliding.onTouchMove(ptr, x, time_ms);
       return;
     }
 
@@ -277,16 +374,12 @@ public final class Pointers implements Handler.Callback
     }
     else
     { // Pointer is on a quadrant.
-      // See [getKeyAtDirection()] for the meaning. The starting point on the
-      // circle is the top direction.
-      double a = Math.atan2(dy, dx) + Math.PI;
-      // a is between 0 and 2pi, 0 is pointing to the left
-      // add 12 to align 0 to the top
-      int direction = ((int)(a * 8 / Math.PI) + 12) % 16;
+      int direction = direction_of_vector(dx, dy);
       if (ptr.gesture == null)
       { // Gesture starts
 
-        ptr.gesture = new Gesture(direction);
+        ptr.gesture = ptr.gesture_state;
+        ptr.gesture.reset(direction);
         KeyValue new_value = getNearestKeyAtDirection(ptr, direction);
         if (new_value != null)
         { // Pointer is swiping into a side key.
@@ -298,7 +391,7 @@ public final class Pointers implements Handler.Callback
               (new_value.equals(ptr.key.getKeyValue(5))
                || new_value.equals(ptr.key.getKeyValue(6))))
           {
-            startSliding(ptr, x);
+            startSliding(ptr, x, time_ms);
           }
           _handler.onPointerDown(new_value, true);
         }
@@ -324,15 +417,43 @@ public final class Pointers implements Handler.Callback
 
   private Pointer getPtr(int pointerId)
   {
-    for (Pointer p : _ptrs)
+    if (pointerId >= 0 && pointerId < MAX_POINTER_ID)
+    {
+      Pointer p = _ptrs_by_id[pointerId];
+      return (p != null && p.pointerId == pointerId) ? p : null;
+    }
+    for (int i = 0; i < _ptrs.size(); i++)
+    {
+      Pointer p = _ptrs.get(i);
       if (p.pointerId == pointerId)
         return p;
+    }
     return null;
   }
 
   private void removePtr(Pointer ptr)
   {
-    _ptrs.remove(ptr);
+    if (_ptrs.remove(ptr))
+      freePointer(ptr);
+  }
+
+  /** Take a pointer from [_free_ptrs] or allocate one. */
+  private Pointer newPointer(int p, KeyboardData.Key k, KeyValue v, float x,
+      float y, Modifiers m)
+  {
+    int n = _free_ptrs.size();
+    Pointer ptr = (n == 0) ? new Pointer() : _free_ptrs.remove(n - 1);
+    ptr.init(p, k, v, x, y, m);
+    return ptr;
+  }
+
+  /** The pointer must have been removed from [_ptrs]. Its fields stay valid
+      until it is reused by [newPointer]. */
+  private void freePointer(Pointer ptr)
+  {
+    // Not found by [getPtr] anymore.
+    ptr.pointerId = -1;
+    _free_ptrs.add(ptr);
   }
 
   private Pointer getLatched(Pointer target)
@@ -344,10 +465,13 @@ public final class Pointers implements Handler.Callback
   {
     if (v == null)
       return null;
-    for (Pointer p : _ptrs)
+    for (int i = 0; i < _ptrs.size(); i++)
+    {
+      Pointer p = _ptrs.get(i);
       if (p.key == k && p.hasFlagsAny(FLAG_P_LATCHED)
           && p.value != null && p.value.equals(v))
         return p;
+    }
     return null;
   }
 
@@ -358,7 +482,7 @@ public final class Pointers implements Handler.Callback
       Pointer ptr = _ptrs.get(i);
       // Latched and not locked, remove
       if (ptr.hasFlagsAny(FLAG_P_LATCHED) && (ptr.flags & FLAG_P_LOCKED) == 0)
-        _ptrs.remove(i);
+        freePointer(_ptrs.remove(i));
       // Not latched but pressed, don't latch once released and stop long press.
       else if ((ptr.flags & FLAG_P_LATCHABLE) != 0)
         ptr.flags &= ~FLAG_P_LATCHABLE;
@@ -374,8 +498,8 @@ public final class Pointers implements Handler.Callback
 
   boolean isSliding()
   {
-    for (Pointer ptr : _ptrs)
-      if (ptr.hasFlagsAny(FLAG_P_SLIDING))
+    for (int i = 0; i < _ptrs.size(); i++)
+      if (_ptrs.get(i).hasFlagsAny(FLAG_P_SLIDING))
         return true;
     return false;
   }
@@ -386,8 +510,9 @@ public final class Pointers implements Handler.Callback
   @Override
   public boolean handleMessage(Message msg)
   {
-    for (Pointer ptr : _ptrs)
+    for (int i = 0; i < _ptrs.size(); i++)
     {
+      Pointer ptr = _ptrs.get(i);
       if (ptr.timeoutWhat == msg.what)
       {
         handleLongPress(ptr);
@@ -452,11 +577,14 @@ public final class Pointers implements Handler.Callback
 
   // Sliding
 
-  void startSliding(Pointer ptr, float x)
+  void startSliding(Pointer ptr, float x, long time_ms)
   {
     stopLongPress(ptr);
     ptr.flags |= FLAG_P_SLIDING;
-    ptr.sliding = new Sliding(x);
+    if (ptr.sliding_state == null)
+      ptr.sliding_state = new Sliding();
+    ptr.sliding = ptr.sliding_state;
+    ptr.sliding.reset(x, time_ms);
   }
 
   /** Return the [FLAG_P_*] flags that correspond to pressing [kv]. */
@@ -512,12 +640,13 @@ public final class Pointers implements Handler.Callback
 
   // Pointers
 
+  /** Pointers are reused, see [newPointer]. */
   private static final class Pointer
   {
     /** -1 when latched. */
     public int pointerId;
     /** The Key pressed by this Pointer */
-    public final KeyboardData.Key key;
+    public KeyboardData.Key key;
     /** Gesture state, see [Gesture]. [null] means the pointer has not moved out of the center region. */
     public Gesture gesture;
     /** Selected value with [modifiers] applied. */
@@ -532,8 +661,11 @@ public final class Pointers implements Handler.Callback
     public int timeoutWhat;
     /** [null] when not in sliding mode. */
     public Sliding sliding;
+    /** Reused by [gesture] and [sliding]. */
+    final Gesture gesture_state = new Gesture(0);
+    Sliding sliding_state = null;
 
-    public Pointer(int p, KeyboardData.Key k, KeyValue v, float x, float y, Modifiers m)
+    public void init(int p, KeyboardData.Key k, KeyValue v, float x, float y, Modifiers m)
     {
       pointerId = p;
       key = k;
@@ -561,23 +693,26 @@ public final class Pointers implements Handler.Callback
     float speed = 1.f;
     /** Coordinate of the last move. */
     float last_x;
-    /** [System.currentTimeMillis()] at the time of the last move. */
+    /** Time of the last move, see [onTouchMove]. */
     long last_move_ms;
 
-    public Sliding(float x)
+    /** Start sliding from [x], reusing this object. */
+    public void reset(float x, long time_ms)
     {
+      d = 0.f;
+      speed = 1.f;
       last_x = x;
-      last_move_ms = System.currentTimeMillis();
+      last_move_ms = time_ms;
     }
 
     static final float SPEED_SMOOTHING = 0.7f;
     /** Avoid absurdly large values. */
     static final float SPEED_MAX = 4.f;
 
-    public void onTouchMove(Pointer ptr, float x)
+    public void onTouchMove(Pointer ptr, float x, long time_ms)
     {
       d += (x - last_x) * speed / _config.slide_step_px;
-      update_speed(x);
+      update_speed(x, time_ms);
       // Send an event when [abs(d)] exceeds [1].
       int d_ = (int)d;
       if (d_ != 0)
@@ -627,11 +762,12 @@ public final class Pointers implements Handler.Callback
     /** [speed] is computed from the elapsed time and distance traveled
         between two move events. Exponential smoothing is used to smooth out
         the noise. Sets [last_move_ms] and [last_x]. */
-    void update_speed(float x)
+    void update_speed(float x, long now)
     {
-      long now = System.currentTimeMillis();
+      // Batched samples might have the same timestamp.
+      long elapsed = Math.max(1, now - last_move_ms);
       float instant_speed = Math.min(SPEED_MAX,
-          Math.abs(x - last_x) / (float)(now - last_move_ms) + 1.f);
+          Math.abs(x - last_x) / (float)elapsed + 1.f);
       speed = speed + (instant_speed - speed) * SPEED_SMOOTHING;
       last_move_ms = now;
       last_x = x;
@@ -642,8 +778,9 @@ public final class Pointers implements Handler.Callback
       Sorted in the order they should be evaluated. */
   public static final class Modifiers
   {
-    private final KeyValue[] _mods;
-    private final int _size;
+    /** Not final for [_intern_probe]. */
+    private KeyValue[] _mods;
+    private int _size;
 
     private Modifiers(KeyValue[] m, int s)
     {
@@ -681,12 +818,25 @@ public final class Pointers implements Handler.Callback
       return new ModifiersDiffIterator(this, m2);
     }
 
+    /** Cells after [_size] are not compared as [_mods] might be larger. */
     @Override
-    public int hashCode() { return Arrays.hashCode(_mods); }
+    public int hashCode()
+    {
+      int h = 1;
+      for (int i = 0; i < _size; i++)
+        h = h * 31 + _mods[i].hashCode();
+      return h;
+    }
     @Override
     public boolean equals(Object obj)
     {
-      return Arrays.equals(_mods, ((Modifiers)obj)._mods);
+      Modifiers snd = (Modifiers)obj;
+      if (_size != snd._size)
+        return false;
+      for (int i = 0; i < _size; i++)
+        if (!_mods[i].equals(snd._mods[i]))
+          return false;
+      return true;
     }
 
     public static final Modifiers EMPTY =
@@ -694,7 +844,41 @@ public final class Pointers implements Handler.Callback
 
     protected static Modifiers ofArray(KeyValue[] mods, int size)
     {
-      // Sort and remove duplicates and nulls.
+      return new Modifiers(mods, sort_mods(mods, size));
+    }
+
+    /** Maximum number of interned combinations. The table is cleared when
+        it's reached. */
+    static final int INTERNED_MAX = 256;
+    static final HashMap<Modifiers, Modifiers> _interned =
+      new HashMap<Modifiers, Modifiers>();
+    static final Modifiers _intern_probe = new Modifiers(null, 0);
+
+    /** Like [ofArray] but returns a shared instance, the same for every
+        combinations of modifiers. [mods] is modified but not retained and can
+        be reused. */
+    static Modifiers intern(KeyValue[] mods, int size)
+    {
+      size = sort_mods(mods, size);
+      if (size == 0)
+        return EMPTY;
+      _intern_probe._mods = mods;
+      _intern_probe._size = size;
+      Modifiers m = _interned.get(_intern_probe);
+      _intern_probe._mods = null;
+      if (m == null)
+      {
+        if (_interned.size() >= INTERNED_MAX)
+          _interned.clear();
+        m = new Modifiers(Arrays.copyOf(mods, size), size);
+        _interned.put(m, m);
+      }
+      return m;
+    }
+
+    /** Sort and remove duplicates and nulls. Returns the new size. */
+    static int sort_mods(KeyValue[] mods, int size)
+    {
       if (size > 1)
       {
         Arrays.sort(mods, 0, size);
@@ -710,7 +894,7 @@ public final class Pointers implements Handler.Callback
         }
         size = j;
       }
-      return new Modifiers(mods, size);
+      return size;
     }
 
     /** Returns modifiers that are in [m1_] but not in [m2_]. */
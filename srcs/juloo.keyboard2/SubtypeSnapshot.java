@@ -0,0 +1,155 @@
+package juloo.keyboard2;
+
+import android.annotation.TargetApi;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.database.ContentObserver;
+import android.os.Build.VERSION;
+import android.os.Handler;
+import android.provider.Settings;
+import android.view.inputmethod.InputMethodInfo;
+import android.view.inputmethod.InputMethodManager;
+import android.view.inputmethod.InputMethodSubtype;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/** What the keyboard needs to know about the enabled input methods and
+    subtypes. Computing it requires several calls to [InputMethodManager],
+    which are slow. The snapshot is kept until [invalidate] is called, when
+    the subtype changes, when input methods are enabled or disabled and when
+    packages are installed or removed. */
+public final class SubtypeSnapshot
+{
+  /** The "default_layout" of the current subtype. [null] if not set. */
+  public final String default_layout;
+  /** Extra keys of the enabled subtypes. [null] if there's no current
+      subtype. */
+  public final ExtraKeys extra_keys;
+  /** Computed on first use by [voice_imes]. */
+  private List<VoiceImeSwitcher.IME> _voice_imes = null;
+
+  private SubtypeSnapshot(String default_layout_, ExtraKeys extra_keys_)
+  {
+    default_layout = default_layout_;
+    extra_keys = extra_keys_;
+  }
+
+  /** Enabled input methods that have a voice subtype. */
+  public List<VoiceImeSwitcher.IME> voice_imes(InputMethodManager imm)
+  {
+    if (_voice_imes == null)
+      _voice_imes = VoiceImeSwitcher.get_voice_ime_list(imm);
+    return _voice_imes;
+  }
+
+  private static SubtypeSnapshot _current = null;
+
+  /** Must be called on the UI thread. */
+  public static SubtypeSnapshot get(Context ctx, InputMethodManager imm)
+  {
+    if (_current == null)
+      _current = compute(ctx, imm);
+    return _current;
+  }
+
+  public static void invalidate()
+  {
+    _current = null;
+  }
+
+  static SubtypeSnapshot compute(Context ctx, InputMethodManager imm)
+  {
+    if (VERSION.SDK_INT < 12)
+      return new SubtypeSnapshot(null, null);
+    InputMethodSubtype subtype = imm.getCurrentInputMethodSubtype();
+    if (subtype == null)
+      return new SubtypeSnapshot(null, null);
+    List<InputMethodSubtype> enabled_subtypes =
+      get_enabled_subtypes(imm, ctx.getPackageName());
+    List<ExtraKeys> extra_keys = new ArrayList<ExtraKeys>();
+    for (InputMethodSubtype s : enabled_subtypes)
+      extra_keys.add(extra_keys_of_subtype(s));
+    return new SubtypeSnapshot(
+        default_layout_for_subtypes(subtype, enabled_subtypes),
+        ExtraKeys.merge(extra_keys));
+  }
+
+  static List<InputMethodSubtype> get_enabled_subtypes(InputMethodManager imm,
+      String pkg)
+  {
+    for (InputMethodInfo imi : imm.getEnabledInputMethodList())
+      if (imi.getPackageName().equals(pkg))
+        return imm.getEnabledInputMethodSubtypeList(imi, true);
+    return Arrays.asList();
+  }
+
+  @TargetApi(12)
+  static ExtraKeys extra_keys_of_subtype(InputMethodSubtype subtype)
+  {
+    String extra_keys = subtype.getExtraValueOf("extra_keys");
+    String script = subtype.getExtraValueOf("script");
+    if (extra_keys != null)
+      return ExtraKeys.parse(script, extra_keys);
+    return ExtraKeys.EMPTY;
+  }
+
+  @TargetApi(12)
+  static String default_layout_for_subtypes(InputMethodSubtype current_subtype,
+      List<InputMethodSubtype> enabled_subtypes)
+  {
+    // Android might return a random subtype, for example, the first in the
+    // list alphabetically.
+    for (InputMethodSubtype s : enabled_subtypes)
+      if (s.getLanguageTag().equals(current_subtype.getLanguageTag()))
+        return s.getExtraValueOf("default_layout");
+    return null;
+  }
+
+  /** Listen for the changes that are not notified to the input method
+      service. Undone by [unregister]. */
+  public static void register(Context ctx, Handler handler)
+  {
+    _settings_observer = new ContentObserver(handler)
+    {
+      @Override
+      public void onChange(boolean self_change)
+      {
+        invalidate();
+      }
+    };
+    // Changes when input methods and subtypes are enabled or disabled.
+    ctx.getContentResolver().registerContentObserver(
+        Settings.Secure.getUriFor(Settings.Secure.ENABLED_INPUT_METHODS),
+        false, _settings_observer);
+    // Installed or updated input methods might have voice subtypes.
+    IntentFilter filter = new IntentFilter();
+    filter.addAction(Intent.ACTION_PACKAGE_ADDED);
+    filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+    filter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+    filter.addDataScheme("package");
+    ctx.registerReceiver(_packages_receiver, filter, null, handler);
+  }
+
+  public static void unregister(Context ctx)
+  {
+    if (_settings_observer == null)
+      return;
+    ctx.getContentResolver().unregisterContentObserver(_settings_observer);
+    ctx.unregisterReceiver(_packages_receiver);
+    _settings_observer = null;
+  }
+
+  static ContentObserver _settings_observer = null;
+
+  static final BroadcastReceiver _packages_receiver = new BroadcastReceiver()
+  {
+    @Override
+    public void onReceive(Context ctx, Intent intent)
+    {
+      invalidate();
+    }
+  };
+}
@@ -1,11 +1,20 @@
 package juloo.keyboard2;
 
 import android.app.AlertDialog;
+import android.content.res.AssetFileDescriptor;
+import android.content.res.AssetManager;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
+import android.os.Process;
 import android.view.Window;
 import android.view.WindowManager;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.Locale;
 
 public final class Utils
@@ -44,4 +53,55 @@ public final class Utils
       out.append(buff, 0, l);
     return out.toString();
   }
+
+  public static byte[] read_all_bytes(InputStream inp) throws Exception
+  {
+    ByteArrayOutputStream out = new ByteArrayOutputStream(inp.available());
+    byte[] buff = new byte[8000];
+    int l;
+    while ((l = inp.read(buff)) != -1)
+      out.write(buff, 0, l);
+    return out.toByteArray();
+  }
+
+  /** Map an asset in memory, read-only. Compressed assets cannot be mapped
+      and are read entirely instead. */
+  public static ByteBuffer map_asset(AssetManager assets, String name) throws Exception
+  {
+    AssetFileDescriptor fd;
+    try
+    {
+      fd = assets.openFd(name);
+    }
+    catch (IOException _e)
+    {
+      InputStream inp = assets.open(name);
+      ByteBuffer b = ByteBuffer.wrap(read_all_bytes(inp));
+      inp.close();
+      return b;
+    }
+    // The mapping stays valid after the file is closed.
+    FileChannel ch = fd.createInputStream().getChannel();
+    ByteBuffer b = ch.map(FileChannel.MapMode.READ_ONLY, fd.getStartOffset(),
+        fd.getLength());
+    ch.close();
+    fd.close();
+    return b;
+  }
+
+  private static Handler _background_handler = null;
+
+  /** Handler of a low priority thread, for work that shouldn't be done on
+      the UI thread. Started on first use. */
+  public static synchronized Handler background_handler()
+  {
+    if (_background_handler == null)
+    {
+      HandlerThread t =
+        new HandlerThread("background", Process.THREAD_PRIORITY_BACKGROUND);
+      t.start();
+      _background_handler = new Handler(t.getLooper());
+    }
+    return _background_handler;
+  }
 }
@@ -27,7 +27,7 @@ class VoiceImeSwitcher
   public static boolean switch_to_voice_ime(InputMethodService ims,
       InputMethodManager imm, SharedPreferences prefs)
   {
-    List<IME> imes = get_voice_ime_list(imm);
+    List<IME> imes = SubtypeSnapshot.get(ims, imm).voice_imes(imm);
     String last_used = prefs.getString(PREF_LAST_USED, null);
     String last_known_imes = prefs.getString(PREF_KNOWN_IMES, null);
     IME last_used_ime = get_ime_by_id(imes, last_used);
@@ -44,7 +44,7 @@ class VoiceImeSwitcher
   public static boolean choose_voice_ime(InputMethodService ims,
       InputMethodManager imm, SharedPreferences prefs)
   {
-    List<IME> imes = get_voice_ime_list(imm);
+    List<IME> imes = SubtypeSnapshot.get(ims, imm).voice_imes(imm);
     choose_voice_ime_and_update_prefs(ims, prefs, imes);
     return true;
   }
@@ -98,6 +98,7 @@ class VoiceImeSwitcher
     return names;
   }
 
+  /** Cached in [SubtypeSnapshot]. */
   static List<IME> get_voice_ime_list(InputMethodManager imm)
   {
     List<IME> imes = new ArrayList<IME>();
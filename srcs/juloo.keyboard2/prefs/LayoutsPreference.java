@@ -12,7 +12,9 @@ import android.widget.ArrayAdapter;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import juloo.keyboard2.*;
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -260,13 +262,40 @@ public class LayoutsPreference extends ListGroupPreference<LayoutsPreference.Lay
     /** Might be null. */
     public final KeyboardData parsed;
     public CustomLayout(String xml_, KeyboardData k) { xml = xml_; parsed = k; }
+    /** The result is cached, parsing the same source again returns the same
+        object. */
     public static CustomLayout parse(String xml)
     {
-      KeyboardData parsed = null;
+      KeyboardData parsed;
+      synchronized (_parsed_cache)
+      {
+        parsed = _parsed_cache.get(xml);
+        if (parsed != null || _parsed_cache.containsKey(xml))
+          return new CustomLayout(xml, parsed);
+      }
       try { parsed = KeyboardData.load_string_exn(xml); }
       catch (Exception e) {}
+      synchronized (_parsed_cache)
+      {
+        _parsed_cache.put(xml, parsed);
+      }
       return new CustomLayout(xml, parsed);
     }
+
+    /** Results of [parse], keyed by the source of the layout. Survives the
+        reloading of the preferences, which parses every custom layouts, and
+        keeps the parsed layouts the same objects, which
+        [Config.modify_layout] also caches by identity. Contains [null] for
+        sources that failed to parse. */
+    static final Map<String, KeyboardData> _parsed_cache =
+      new LinkedHashMap<String, KeyboardData>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, KeyboardData> e)
+        {
+          return size() > PARSED_CACHE_SIZE;
+        }
+      };
+    static final int PARSED_CACHE_SIZE = 16;
   }
 
   /** Named layouts are serialized to strings and custom layouts to JSON
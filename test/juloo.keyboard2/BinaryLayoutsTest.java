@@ -0,0 +1,104 @@
+package juloo.keyboard2;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.util.Arrays;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/** The layouts decoded from [assets/layouts.bin] are the same as the layouts
+    parsed from [srcs/layouts] by [KeyboardData.load_string_exn]. The XML is
+    not compiled by aapt here, layouts must not use the escapes that aapt
+    interprets but [KeyValue.getKeyByName] doesn't, like [\']. */
+@RunWith(RobolectricTestRunner.class)
+@org.robolectric.annotation.Config(sdk = 33)
+public class BinaryLayoutsTest
+{
+  @Test
+  public void same_as_xml() throws Exception
+  {
+    BinaryLayouts bin = new BinaryLayouts(read_file(new File("assets/layouts.bin")));
+    File[] files = new File("srcs/layouts").listFiles();
+    Arrays.sort(files);
+    int checked = 0;
+    for (File f : files)
+    {
+      String fname = f.getName();
+      if (!fname.endsWith(".xml"))
+        continue;
+      String id = fname.substring(0, fname.length() - 4);
+      String src = new String(read_file(f), BinaryLayouts.UTF_8);
+      KeyboardData expected = KeyboardData.load_string_exn(src);
+      KeyboardData got = bin.load(id);
+      assertNotNull(id + ": missing from layouts.bin", got);
+      assert_layouts_equal(id, expected, got);
+      checked++;
+    }
+    assertTrue(checked > 0);
+    assertNull(bin.load("not_a_layout"));
+  }
+
+  static void assert_layouts_equal(String id, KeyboardData exp, KeyboardData got)
+  {
+    assertEquals(id + ": keysWidth", exp.keysWidth, got.keysWidth, 0f);
+    assertEquals(id + ": keysHeight", exp.keysHeight, got.keysHeight, 0f);
+    assertEquals(id + ": script", exp.script, got.script);
+    assertEquals(id + ": numpad_script", exp.numpad_script, got.numpad_script);
+    assertEquals(id + ": name", exp.name, got.name);
+    assertEquals(id + ": bottom_row", exp.bottom_row, got.bottom_row);
+    assertEquals(id + ": locale_extra_keys", exp.locale_extra_keys,
+        got.locale_extra_keys);
+    assertEquals(id + ": modmap", exp.modmap == null, got.modmap == null);
+    if (exp.modmap != null)
+    {
+      assertEquals(id + ": modmap shift", exp.modmap.shift, got.modmap.shift);
+      assertEquals(id + ": modmap fn", exp.modmap.fn, got.modmap.fn);
+    }
+    assertEquals(id + ": rows", exp.rows.size(), got.rows.size());
+    for (int r = 0; r < exp.rows.size(); r++)
+    {
+      KeyboardData.Row er = exp.rows.get(r);
+      KeyboardData.Row gr = got.rows.get(r);
+      String rid = id + ": row " + r;
+      assertEquals(rid + " height", er.height, gr.height, 0f);
+      assertEquals(rid + " shift", er.shift, gr.shift, 0f);
+      assertEquals(rid + " keysWidth", er.keysWidth, gr.keysWidth, 0f);
+      assertEquals(rid + " keys", er.keys.size(), gr.keys.size());
+      for (int k = 0; k < er.keys.size(); k++)
+        assert_keys_equal(rid + " key " + k, er.keys.get(k), gr.keys.get(k));
+    }
+  }
+
+  static void assert_keys_equal(String kid, KeyboardData.Key exp,
+      KeyboardData.Key got)
+  {
+    assertEquals(kid + " keys", Arrays.asList(exp.keys), Arrays.asList(got.keys));
+    for (int i = 0; i < exp.keys.length; i++)
+      assertEquals(kid + " loc " + i, exp.keyHasFlag(i, KeyboardData.Key.F_LOC),
+          got.keyHasFlag(i, KeyboardData.Key.F_LOC));
+    assertEquals(kid + " anticircle", exp.anticircle, got.anticircle);
+    assertEquals(kid + " width", exp.width, got.width, 0f);
+    assertEquals(kid + " shift", exp.shift, got.shift, 0f);
+    assertEquals(kid + " slider", exp.slider, got.slider);
+    assertEquals(kid + " indication", exp.indication, got.indication);
+  }
+
+  static byte[] read_file(File f) throws Exception
+  {
+    InputStream inp = new FileInputStream(f);
+    try
+    {
+      return Utils.read_all_bytes(inp);
+    }
+    finally
+    {
+      inp.close();
+    }
+  }
+}
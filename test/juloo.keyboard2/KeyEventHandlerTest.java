@@ -0,0 +1,421 @@
+package juloo.keyboard2;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.text.Editable;
+import android.text.InputType;
+import android.text.Selection;
+import android.text.TextUtils;
+import android.view.KeyEvent;
+import android.view.View;
+import android.view.inputmethod.BaseInputConnection;
+import android.view.inputmethod.EditorInfo;
+import android.view.inputmethod.ExtractedText;
+import android.view.inputmethod.ExtractedTextRequest;
+import android.view.inputmethod.InputConnection;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.shadows.ShadowLooper;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/** Type text through [KeyEventHandler] into a fake editor and count the calls
+    made to the editor. */
+@RunWith(RobolectricTestRunner.class)
+@org.robolectric.annotation.Config(sdk = 33)
+public class KeyEventHandlerTest
+{
+  static final String TEXT =
+    "Hello world. This is a test, isn't it? Yes! \"Quoted.\" (Parens.) "
+    + "An abbreviation, e.g. this one, doesn't end a sentence.\tTab. "
+    + "Numbers 1.5 and 3... Then 'single quotes.' And [brackets!] ok. ";
+
+  FakeEditor _editor;
+  KeyEventHandler _handler;
+
+  @Before
+  public void setUp()
+  {
+    Context ctx = RuntimeEnvironment.getApplication();
+    _handler = new KeyEventHandler(Looper.getMainLooper(), new Receiver());
+    Config.initGlobalConfig(ctx.getSharedPreferences("test", 0),
+        ctx.getResources(), _handler);
+    _editor = new FakeEditor(new View(ctx), _handler);
+    EditorInfo info = new EditorInfo();
+    info.inputType = InputType.TYPE_CLASS_TEXT
+      | InputType.TYPE_TEXT_FLAG_CAP_SENTENCES;
+    info.initialSelStart = 0;
+    info.initialSelEnd = 0;
+    info.initialCapsMode = TextUtils.CAP_MODE_SENTENCES;
+    _handler.started(info);
+    idle();
+  }
+
+  /** Typing from the start of the text doesn't need to query the editor. */
+  @Test
+  public void editor_calls_per_1000_keystrokes()
+  {
+    _editor.reset_counts();
+    for (int i = 0; i < 1000; i++)
+    {
+      type(TEXT.charAt(i % TEXT.length()));
+      idle();
+    }
+    assertEquals(repeated_text(1000), _editor.text());
+    assertEquals(0, _editor.get_cursor_caps_mode_calls);
+    assertEquals(0, _editor.get_extracted_text_calls);
+    assertEquals(0, _editor.get_text_calls);
+    assertTrue("calls: " + _editor.calls(), _editor.calls() <= 3000);
+  }
+
+  /** Keystrokes faster than the editor reports the selection. */
+  @Test
+  public void editor_calls_per_1000_keystrokes_batched()
+  {
+    _editor.reset_counts();
+    for (int i = 0; i < 1000; i++)
+    {
+      type(TEXT.charAt(i % TEXT.length()));
+      if (i % 10 == 9)
+        idle();
+    }
+    idle();
+    assertEquals(repeated_text(1000), _editor.text());
+    assertEquals(0, _editor.get_cursor_caps_mode_calls);
+    assertTrue("calls: " + _editor.calls(), _editor.calls() <= 300);
+  }
+
+  /** A keystroke after a pause is sent without waiting. */
+  @Test
+  public void keystroke_sent_without_delay()
+  {
+    ShadowLooper.idleMainLooper(100, TimeUnit.MILLISECONDS);
+    type('a');
+    ShadowLooper.idleMainLooper();
+    assertEquals("a", _editor.text());
+  }
+
+  /** Key repeat faster than a frame is sent at most once per frame. */
+  @Test
+  public void editor_calls_during_key_repeat()
+  {
+    _editor.reset_counts();
+    // One second of key repeat at the shortest interval.
+    for (int i = 0; i < 200; i++)
+    {
+      type('a');
+      ShadowLooper.idleMainLooper(5, TimeUnit.MILLISECONDS);
+    }
+    idle();
+    assertEquals(repeated_char('a', 200), _editor.text());
+    // A batch edit and a commit per flush.
+    int max_flushes = 1000 / (int)KeyEventHandler.FLUSH_INTERVAL_MS + 2;
+    assertTrue("calls: " + _editor.calls(), _editor.calls() <= 3 * max_flushes);
+  }
+
+  /** Sliding the cursor while the editor reports the selection a few frames
+      late moves from the tracked selection and stops at the ends of the
+      text without querying the selection. */
+  @Test
+  public void cursor_slide_with_late_reports()
+  {
+    for (char c : "Hello world".toCharArray())
+      type(c);
+    idle();
+    _editor.reset_counts();
+    _editor.report_delay = 50;
+    slide(-5);
+    assertEquals(6, _editor.cursor());
+    slide(20);
+    assertEquals(11, _editor.cursor());
+    slide(-1);
+    assertEquals(10, _editor.cursor());
+    slide(-20);
+    assertEquals(0, _editor.cursor());
+    idle();
+    slide(3);
+    assertEquals(3, _editor.cursor());
+    assertEquals(0, _editor.get_extracted_text_calls);
+    assertEquals(1, _editor.get_text_calls);
+    assertEquals(0, _editor.send_key_event_calls);
+  }
+
+  /** [Autocapitalisation.local_caps_mode] agrees with
+      [TextUtils.getCapsMode] whenever it gives an answer. */
+  @Test
+  public void local_caps_mode_matches_getCapsMode()
+  {
+    String alphabet = "ab .,!?\"'()[]\t\nxe.g";
+    Random rnd = new Random(1);
+    int checked = 0;
+    for (int i = 0; i < 20000; i++)
+    {
+      int r = rnd.nextInt(20);
+      if (r == 0)
+        backspace();
+      else if (r == 1)
+        _handler.key_up(KeyValue.getKeyByName("enter"), Pointers.Modifiers.EMPTY);
+      else
+        type(alphabet.charAt(rnd.nextInt(alphabet.length())));
+      idle();
+      int local = _handler._autocap.local_caps_mode();
+      if (local < 0)
+        continue;
+      Editable t = _editor.getEditable();
+      int expected = TextUtils.getCapsMode(t, Selection.getSelectionStart(t),
+          TextUtils.CAP_MODE_SENTENCES);
+      assertEquals("text: \"" + t + "\"", expected != 0, local != 0);
+      checked++;
+    }
+    assertTrue("checked: " + checked, checked > 10000);
+  }
+
+  void type(char c)
+  {
+    _handler.key_up(KeyValue.makeCharKey(c), Pointers.Modifiers.EMPTY);
+  }
+
+  void backspace()
+  {
+    _handler.key_up(KeyValue.getKeyByName("backspace"),
+        Pointers.Modifiers.EMPTY);
+  }
+
+  static void idle()
+  {
+    ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+  }
+
+  /** Move the cursor one step at a time, one frame apart. */
+  void slide(int d)
+  {
+    int step = (d < 0) ? -1 : 1;
+    for (int i = 0; i != d; i += step)
+    {
+      _handler.move_cursor(step);
+      ShadowLooper.idleMainLooper(16, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  static String repeated_char(char c, int len)
+  {
+    StringBuilder b = new StringBuilder();
+    for (int i = 0; i < len; i++)
+      b.append(c);
+    return b.toString();
+  }
+
+  static String repeated_text(int len)
+  {
+    StringBuilder b = new StringBuilder();
+    while (b.length() < len)
+      b.append(TEXT);
+    return b.substring(0, len);
+  }
+
+  class Receiver implements KeyEventHandler.IReceiver
+  {
+    public void handle_event_key(KeyValue.Event ev) {}
+    public void set_shift_state(boolean state, boolean lock) {}
+    public void set_compose_pending(boolean pending) {}
+
+    public InputConnection getCurrentInputConnection()
+    {
+      return _editor;
+    }
+  }
+
+  /** Counts the calls that reach the editor. Selection changes are reported
+      to the handler after a batch edit, like [InputMethodService] does. An
+      unchanged selection is not reported. */
+  static class FakeEditor extends BaseInputConnection
+  {
+    final KeyEventHandler _handler;
+    final Handler _ui;
+    int _batch_depth = 0;
+    int _reported_sel = 0;
+    int _reported_sel_end = 0;
+    /** Delay before the handler is notified of a selection change. */
+    long report_delay = 0;
+
+    int commit_text_calls = 0;
+    int set_selection_calls = 0;
+    int batch_edit_calls = 0;
+    int get_cursor_caps_mode_calls = 0;
+    int get_extracted_text_calls = 0;
+    int get_text_calls = 0;
+    int send_key_event_calls = 0;
+    int delete_surrounding_text_calls = 0;
+
+    FakeEditor(View view, KeyEventHandler handler)
+    {
+      super(view, true);
+      _handler = handler;
+      _ui = new Handler(Looper.getMainLooper());
+    }
+
+    void reset_counts()
+    {
+      commit_text_calls = set_selection_calls = batch_edit_calls =
+        get_cursor_caps_mode_calls = get_extracted_text_calls =
+        get_text_calls = send_key_event_calls =
+        delete_surrounding_text_calls = 0;
+    }
+
+    int calls()
+    {
+      return commit_text_calls + set_selection_calls + batch_edit_calls
+        + get_cursor_caps_mode_calls + get_extracted_text_calls
+        + get_text_calls + send_key_event_calls
+        + delete_surrounding_text_calls;
+    }
+
+    String text()
+    {
+      return getEditable().toString();
+    }
+
+    int cursor()
+    {
+      return Selection.getSelectionStart(getEditable());
+    }
+
+    @Override
+    public boolean beginBatchEdit()
+    {
+      batch_edit_calls++;
+      _batch_depth++;
+      return true;
+    }
+
+    @Override
+    public boolean endBatchEdit()
+    {
+      batch_edit_calls++;
+      if (--_batch_depth == 0)
+        report_selection();
+      return true;
+    }
+
+    @Override
+    public boolean commitText(CharSequence text, int new_cursor)
+    {
+      commit_text_calls++;
+      Editable e = getEditable();
+      int start = Selection.getSelectionStart(e);
+      int end = Selection.getSelectionEnd(e);
+      e.replace(Math.min(start, end), Math.max(start, end), text);
+      report_selection();
+      return true;
+    }
+
+    @Override
+    public boolean setSelection(int start, int end)
+    {
+      set_selection_calls++;
+      Editable e = getEditable();
+      if (start > e.length() || end > e.length())
+        return true;
+      Selection.setSelection(e, start, end);
+      report_selection();
+      return true;
+    }
+
+    @Override
+    public int getCursorCapsMode(int req_modes)
+    {
+      get_cursor_caps_mode_calls++;
+      return TextUtils.getCapsMode(getEditable(), cursor(), req_modes);
+    }
+
+    @Override
+    public ExtractedText getExtractedText(ExtractedTextRequest req, int flags)
+    {
+      get_extracted_text_calls++;
+      Editable e = getEditable();
+      ExtractedText et = new ExtractedText();
+      et.text = "";
+      et.selectionStart = Selection.getSelectionStart(e);
+      et.selectionEnd = Selection.getSelectionEnd(e);
+      return et;
+    }
+
+    @Override
+    public CharSequence getTextBeforeCursor(int n, int flags)
+    {
+      get_text_calls++;
+      return super.getTextBeforeCursor(n, flags);
+    }
+
+    @Override
+    public CharSequence getTextAfterCursor(int n, int flags)
+    {
+      get_text_calls++;
+      return super.getTextAfterCursor(n, flags);
+    }
+
+    @Override
+    public boolean deleteSurroundingText(int before, int after)
+    {
+      delete_surrounding_text_calls++;
+      boolean r = super.deleteSurroundingText(before, after);
+      report_selection();
+      return r;
+    }
+
+    @Override
+    public boolean sendKeyEvent(KeyEvent ev)
+    {
+      send_key_event_calls++;
+      if (ev.getAction() != KeyEvent.ACTION_DOWN)
+        return true;
+      Editable e = getEditable();
+      int c = cursor();
+      switch (ev.getKeyCode())
+      {
+        case KeyEvent.KEYCODE_DEL:
+          if (c > 0)
+            e.delete(c - 1, c);
+          break;
+        case KeyEvent.KEYCODE_ENTER:
+          e.insert(c, "\n");
+          break;
+        case KeyEvent.KEYCODE_DPAD_LEFT:
+          Selection.setSelection(e, Math.max(0, c - 1));
+          break;
+        case KeyEvent.KEYCODE_DPAD_RIGHT:
+          Selection.setSelection(e, Math.min(e.length(), c + 1));
+          break;
+      }
+      report_selection();
+      return true;
+    }
+
+    void report_selection()
+    {
+      if (_batch_depth > 0)
+        return;
+      Editable e = getEditable();
+      final int old_sel = _reported_sel;
+      final int start = Selection.getSelectionStart(e);
+      final int end = Selection.getSelectionEnd(e);
+      if (start == _reported_sel && end == _reported_sel_end)
+        return;
+      _reported_sel = start;
+      _reported_sel_end = end;
+      _ui.postDelayed(new Runnable()
+          {
+            public void run()
+            {
+              _handler.selection_updated(old_sel, start, end);
+            }
+          }, report_delay);
+    }
+  }
+}
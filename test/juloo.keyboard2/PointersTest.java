@@ -0,0 +1,112 @@
+package juloo.keyboard2;
+
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PointersTest
+{
+  static final float[] MAGNITUDES = new float[]{
+    1e-6f, 1e-3f, 0.5f, 1.f, 7.f, 37.5f, 1000.f, 1e6f, 1e30f };
+
+  @Test
+  public void direction_of_vector_sweep()
+  {
+    int steps = 100000;
+    for (float r : MAGNITUDES)
+      for (int i = 0; i < steps; i++)
+      {
+        double a = 2 * Math.PI * i / steps;
+        check((float)(r * Math.cos(a)), (float)(r * Math.sin(a)));
+      }
+  }
+
+  /** Vectors on the boundaries between the sections and the nearest floats
+      around them. */
+  @Test
+  public void direction_of_vector_boundaries()
+  {
+    for (float r : MAGNITUDES)
+      for (int k = 0; k < 16; k++)
+      {
+        double a = Math.PI * k / 8;
+        float dx = (float)(r * Math.cos(a));
+        float dy = (float)(r * Math.sin(a));
+        for (float x : around(dx))
+          for (float y : around(dy))
+            check(x, y);
+      }
+  }
+
+  /** Like [atan2], the sign of a zero decides the side of an axis. */
+  @Test
+  public void direction_of_vector_axes()
+  {
+    check_exact(0.f, 0.f);
+    check_exact(-0.f, 0.f);
+    check_exact(0.f, -0.f);
+    check_exact(-0.f, -0.f);
+    for (float r : MAGNITUDES)
+    {
+      check_exact(r, 0.f);
+      check_exact(-r, 0.f);
+      check_exact(0.f, r);
+      check_exact(0.f, -r);
+      check_exact(r, -0.f);
+      check_exact(-r, -0.f);
+      check_exact(-0.f, r);
+      check_exact(-0.f, -r);
+    }
+  }
+
+  @Test
+  public void direction_of_vector_random()
+  {
+    Random rnd = new Random(42);
+    for (int i = 0; i < 1000000; i++)
+    {
+      float r = MAGNITUDES[rnd.nextInt(MAGNITUDES.length)];
+      check((rnd.nextFloat() * 2 - 1) * r, (rnd.nextFloat() * 2 - 1) * r);
+    }
+  }
+
+  static void check_exact(float dx, float dy)
+  {
+    assertEquals("dx=" + dx + " dy=" + dy,
+        Pointers.direction_of_vector_atan2(dx, dy),
+        Pointers.direction_of_vector(dx, dy));
+  }
+
+  /** Distance to a boundary, in sections of [pi/8], under which the two
+      implementations may disagree. [direction_of_vector] computes in float,
+      [atan2] computes in double and rounds the angles very close to the
+      axes onto them. */
+  static final double BOUNDARY_MARGIN = 1e-6;
+
+  /** The directions are the same or, for vectors on a boundary between two
+      sections, adjacent. */
+  static void check(float dx, float dy)
+  {
+    String msg = "dx=" + dx + " dy=" + dy;
+    int expected = Pointers.direction_of_vector_atan2(dx, dy);
+    int got = Pointers.direction_of_vector(dx, dy);
+    if (got == expected)
+      return;
+    double t = Math.atan2(dy, dx) * 8 / Math.PI;
+    assertTrue(msg + " not on a boundary, expected " + expected + " got " + got,
+        Math.abs(t - Math.rint(t)) < BOUNDARY_MARGIN);
+    int d = (got - expected + 16) % 16;
+    assertTrue(msg + " not adjacent, expected " + expected + " got " + got,
+        d == 1 || d == 15);
+  }
+
+  /** [f] and the floats closest to it. */
+  static float[] around(float f)
+  {
+    float down = Math.nextDown(f);
+    float up = Math.nextUp(f);
+    return new float[]{
+      Math.nextDown(down), down, f, up, Math.nextUp(up) };
+  }
+}